@@ -69,11 +69,12 @@ public class Daedalus extends Application {
     public static Configurations configurations;
     public static String rulePath;
     public static String logPath;
+    public static String cachePath;
+    public static String indexPath;
     private static String configPath;
 
     private static Daedalus instance;
     private SharedPreferences prefs;
-    private Thread mResolver;
 
     @Override
     public void onCreate() {
@@ -81,8 +82,6 @@ public class Daedalus extends Application {
 
         instance = this;
         Logger.init();
-        mResolver = new Thread(new RuleResolver());
-        mResolver.start();
         initData();
     }
 
@@ -99,6 +98,9 @@ public class Daedalus extends Application {
     private void initData() {
         PreferenceManager.setDefaultValues(this, R.xml.perf_settings, false);
         prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        cachePath = getFilesDir().getPath() + "/dns_cache.bin";
+        indexPath = getCacheDir().getPath() + "/rules/";
+        initDirectory(indexPath);
 
         if (getExternalFilesDir(null) != null) {
             rulePath = getExternalFilesDir(null).getPath() + "/rules/";
@@ -123,28 +125,29 @@ public class Daedalus extends Application {
     }
 
     public static void initRuleResolver() {
-        ArrayList<String> pendingLoad = new ArrayList<>();
         ArrayList<Rule> usingRules = configurations.getUsingRules();
-        if (usingRules != null && usingRules.size() > 0) {
-            for (Rule rule : usingRules) {
-                if (rule.isUsing()) {
-                    pendingLoad.add(rulePath + rule.getFileName());
-                }
-            }
-            if (pendingLoad.size() > 0) {
-                String[] arr = new String[pendingLoad.size()];
-                pendingLoad.toArray(arr);
-                switch (usingRules.get(0).getType()) {
-                    case Rule.TYPE_HOSTS:
-                        RuleResolver.startLoadHosts(arr);
-                        break;
+        if (usingRules.size() > 0) {
+            String[] files = new String[usingRules.size()];
+            int[] types = new int[usingRules.size()];
+            for (int i = 0; i < usingRules.size(); i++) {
+                Rule rule = usingRules.get(i);
+                files[i] = rulePath + rule.getFileName();
+                switch (rule.getType()) {
                     case Rule.TYPE_DNAMASQ:
-                        RuleResolver.startLoadDnsmasq(arr);
+                        types[i] = RuleResolver.MODE_DNSMASQ;
+                        break;
+                    case Rule.TYPE_ALLOWLIST:
+                        types[i] = RuleResolver.MODE_ALLOWLIST;
+                        break;
+                    case Rule.TYPE_PATTERN:
+                        types[i] = RuleResolver.MODE_PATTERN;
+                        break;
+                    default:
+                        types[i] = RuleResolver.MODE_HOSTS;
                         break;
                 }
-            } else {
-                RuleResolver.clear();
             }
+            RuleResolver.startLoad(files, types);
         } else {
             RuleResolver.clear();
         }
@@ -164,10 +167,8 @@ public class Daedalus extends Application {
 
         instance = null;
         prefs = null;
-        RuleResolver.shutdown();
-        mResolver.interrupt();
         RuleResolver.clear();
-        mResolver = null;
+        RuleResolver.shutdown();
         Logger.shutdown();
     }
 
@@ -0,0 +1,193 @@
+package com.carrotproxy.dns.provider;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+
+/**
+ * Daedalus Project
+ *
+ * @author iTX Technologies
+ * @link https://itxtech.org
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * A UDP packet over IPv4 or IPv6 read from the device. The headers are checked in place on the
+ * read buffer, then only they and the payload are copied out, so the buffer can be reused at
+ * once and a query waiting upstream holds a few dozen bytes. The response is written by
+ * copying the request headers with addresses and ports swapped.
+ */
+final class DevicePacket {
+    private static final int PROTOCOL_UDP = 17;
+    private static final int IPV4_HEADER_LENGTH = 20;
+    private static final int IPV6_HEADER_LENGTH = 40;
+    private static final int UDP_HEADER_LENGTH = 8;
+
+    // The IP and UDP headers of the query, at most 68 bytes, null once released
+    private byte[] data;
+    // The UDP payload until the decoder takes it
+    private byte[] payload;
+    private final boolean ipv6;
+    // Offset of the UDP header, the length of the IP header including IPv4 options
+    private final int udpOffset;
+    private final int payloadLength;
+
+    private DevicePacket(byte[] data, byte[] payload, boolean ipv6, int udpOffset) {
+        this.data = data;
+        this.payload = payload;
+        this.ipv6 = ipv6;
+        this.udpOffset = udpOffset;
+        this.payloadLength = payload.length;
+    }
+
+    /**
+     * @param data the packet as read from the device, no reference to it is kept
+     * @return the packet, or null if it is not an unfragmented UDP packet
+     */
+    static DevicePacket parse(byte[] data, int length) {
+        if (length < IPV4_HEADER_LENGTH) {
+            return null;
+        }
+        int version = (data[0] & 0xFF) >> 4;
+        int udpOffset;
+        int ipEnd;
+        if (version == 4) {
+            udpOffset = (data[0] & 0x0F) * 4;
+            ipEnd = readShort(data, 2);
+            //More fragments flag or a fragment offset
+            if (udpOffset < IPV4_HEADER_LENGTH || (readShort(data, 6) & 0x3FFF) != 0 ||
+                    (data[9] & 0xFF) != PROTOCOL_UDP) {
+                return null;
+            }
+        } else if (version == 6 && length >= IPV6_HEADER_LENGTH) {
+            //Extension headers are not followed, DNS queries do not carry them
+            udpOffset = IPV6_HEADER_LENGTH;
+            ipEnd = IPV6_HEADER_LENGTH + readShort(data, 4);
+            if ((data[6] & 0xFF) != PROTOCOL_UDP) {
+                return null;
+            }
+        } else {
+            return null;
+        }
+        if (ipEnd > length || udpOffset + UDP_HEADER_LENGTH > ipEnd) {
+            return null;
+        }
+        int udpLength = readShort(data, udpOffset + 4);
+        if (udpLength < UDP_HEADER_LENGTH || udpOffset + udpLength > ipEnd) {
+            return null;
+        }
+        int payloadOffset = udpOffset + UDP_HEADER_LENGTH;
+        return new DevicePacket(Arrays.copyOf(data, payloadOffset),
+                Arrays.copyOfRange(data, payloadOffset, udpOffset + udpLength), version == 6, udpOffset);
+    }
+
+    /**
+     * Drops the headers, a packet is released once it has been answered or dropped. Releasing
+     * twice does nothing.
+     */
+    void release() {
+        data = null;
+        payload = null;
+    }
+
+    boolean isReleased() {
+        return data == null;
+    }
+
+    InetAddress getDestinationAddress() throws UnknownHostException {
+        return ipv6 ? InetAddress.getByAddress(Arrays.copyOfRange(data, 24, 40)) :
+                InetAddress.getByAddress(Arrays.copyOfRange(data, 16, 20));
+    }
+
+    int getPayloadLength() {
+        return payloadLength;
+    }
+
+    /**
+     * @return the UDP payload, which belongs to the caller from then on, so a query waiting
+     * upstream does not keep a second reference to it
+     */
+    byte[] takePayload() {
+        byte[] taken = payload;
+        payload = null;
+        return taken;
+    }
+
+    /**
+     * @return the length of the packet carrying a response of payloadLength bytes
+     */
+    int getResponseLength(int payloadLength) {
+        return udpOffset + UDP_HEADER_LENGTH + payloadLength;
+    }
+
+    /**
+     * Writes the packet carrying a response back to the sender of this one. The IP header is
+     * copied with addresses swapped, so only lengths and checksums have to be written.
+     *
+     * @param response a buffer of at least {@link #getResponseLength(int)} bytes, every byte of
+     *                 the packet is written
+     */
+    void writeResponse(byte[] payload, byte[] response) {
+        int udpLength = UDP_HEADER_LENGTH + payload.length;
+        System.arraycopy(data, 0, response, 0, udpOffset);
+        if (ipv6) {
+            System.arraycopy(data, 8, response, 24, 16);
+            System.arraycopy(data, 24, response, 8, 16);
+            writeShort(response, 4, udpLength);
+        } else {
+            System.arraycopy(data, 12, response, 16, 4);
+            System.arraycopy(data, 16, response, 12, 4);
+            //Swapping the addresses leaves the header checksum unchanged, only the length is updated (RFC 1624)
+            int oldLength = readShort(data, 2);
+            int newLength = udpOffset + udpLength;
+            writeShort(response, 2, newLength);
+            int sum = (~readShort(data, 10) & 0xFFFF) + (~oldLength & 0xFFFF) + newLength;
+            writeShort(response, 10, ~fold(sum) & 0xFFFF);
+        }
+        response[udpOffset] = data[udpOffset + 2];
+        response[udpOffset + 1] = data[udpOffset + 3];
+        response[udpOffset + 2] = data[udpOffset];
+        response[udpOffset + 3] = data[udpOffset + 1];
+        writeShort(response, udpOffset + 4, udpLength);
+        writeShort(response, udpOffset + 6, 0);
+        System.arraycopy(payload, 0, response, udpOffset + UDP_HEADER_LENGTH, payload.length);
+
+        //Pseudo header of addresses, protocol and length, then the UDP header and payload
+        int sum = ipv6 ? sum(response, 8, 32) : sum(response, 12, 8);
+        sum += PROTOCOL_UDP + udpLength;
+        sum += sum(response, udpOffset, udpLength);
+        int checksum = ~fold(sum) & 0xFFFF;
+        writeShort(response, udpOffset + 6, checksum == 0 ? 0xFFFF : checksum);
+    }
+
+    private static int sum(byte[] data, int offset, int length) {
+        int sum = 0;
+        int end = offset + (length & ~1);
+        for (int i = offset; i < end; i += 2) {
+            sum += ((data[i] & 0xFF) << 8) | (data[i + 1] & 0xFF);
+        }
+        if ((length & 1) != 0) {
+            sum += (data[end] & 0xFF) << 8;
+        }
+        return fold(sum);
+    }
+
+    private static int fold(int sum) {
+        while ((sum >>> 16) != 0) {
+            sum = (sum & 0xFFFF) + (sum >>> 16);
+        }
+        return sum;
+    }
+
+    private static int readShort(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+    }
+
+    private static void writeShort(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >> 8);
+        data[offset + 1] = (byte) value;
+    }
+}
@@ -0,0 +1,368 @@
+package com.carrotproxy.dns.provider;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Daedalus Project
+ *
+ * @author iTX Technologies
+ * @link https://itxtech.org
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ */
+class DnsCache {
+    static final int MIN_TTL = 30;
+    static final int MAX_TTL = 86400;
+    static final int MAX_NEGATIVE_TTL = 300;
+    static final int MAX_BYTES = 4 * 1024 * 1024;
+    // RFC 8767: expired answers are served with a short TTL for a bounded time
+    static final int STALE_TTL = 30;
+    static final long STALE_WINDOW = 24 * 3600 * 1000L;
+    static final int PREFETCH_MIN_HITS = 3;
+    static final long REFRESH_TIMEOUT = 10000;
+
+    private static final int SNAPSHOT_MAGIC = 0x44434348;//DCCH
+    private static final int SNAPSHOT_VERSION = 1;
+
+    static final int HEADER_LENGTH = 12;
+    private static final int TYPE_OPT = 41;
+    private static final int RCODE_NOERROR = 0;
+    private static final int RCODE_NXDOMAIN = 3;
+
+    /**
+     * A cached response together with the positions of its TTL fields, so hits can be
+     * answered with the remaining TTL without parsing the message again.
+     */
+    static class Entry {
+        final byte[] response;
+        final int[] ttlOffsets;
+        final long stored;
+        final long expires;
+        int hits = 0;
+        long refreshStarted = 0;
+
+        Entry(byte[] response, int[] ttlOffsets, long stored, long expires) {
+            this.response = response;
+            this.ttlOffsets = ttlOffsets;
+            this.stored = stored;
+            this.expires = expires;
+        }
+    }
+
+    // Access ordered, the eldest entry is the least recently used one
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private int bytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long staleHits = 0;
+    private boolean dirty = false;
+
+    long getHits() {
+        return hits;
+    }
+
+    long getMisses() {
+        return misses;
+    }
+
+    long getStaleHits() {
+        return staleHits;
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * Builds the cache key of a message from its question section: the lower-cased name
+     * followed by type and class, as they appear on the wire.
+     *
+     * @return the key, or null if the message does not carry exactly one question
+     */
+    static String getKey(byte[] message) {
+        if (message.length < HEADER_LENGTH || readShort(message, 4) != 1) {
+            return null;
+        }
+        int end = skipName(message, HEADER_LENGTH);
+        if (end < 0 || end + 4 > message.length) {
+            return null;
+        }
+        end += 4;
+        char[] key = new char[end - HEADER_LENGTH];
+        for (int i = HEADER_LENGTH; i < end; i++) {
+            int c = message[i] & 0xFF;
+            if (c >= 'A' && c <= 'Z') {
+                c += 'a' - 'A';
+            }
+            key[i - HEADER_LENGTH] = (char) c;
+        }
+        return new String(key);
+    }
+
+    /**
+     * @param serveStale whether entries may be used for {@link #STALE_WINDOW} after they expired
+     * @return the entry to answer from, or null on a miss
+     */
+    Entry lookup(String key, long now, boolean serveStale) {
+        Entry entry = entries.get(key);
+        if (entry != null && now >= entry.expires && (!serveStale || now >= entry.expires + STALE_WINDOW)) {
+            remove(key);
+            entry = null;
+        }
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        if (now >= entry.expires) {
+            staleHits++;
+        }
+        entry.hits++;
+        return entry;
+    }
+
+    /**
+     * Builds the response to a request from an entry: the transaction ID is taken from the
+     * request and every TTL is lowered by the time the entry has spent in the cache.
+     */
+    byte[] answer(Entry entry, byte[] request, long now) {
+        byte[] response = Arrays.copyOf(entry.response, entry.response.length);
+        response[0] = request[0];
+        response[1] = request[1];
+        boolean stale = now >= entry.expires;
+        long elapsed = (now - entry.stored) / 1000;
+        for (int offset : entry.ttlOffsets) {
+            long ttl = stale ? STALE_TTL : readInt(response, offset) - elapsed;
+            writeInt(response, offset, ttl > 0 ? ttl : 0);
+        }
+        return response;
+    }
+
+    /**
+     * Decides whether the entry should be refreshed from upstream: always once it is stale,
+     * and with prefetch enabled when a popular entry enters the last tenth of its lifetime.
+     * Only one refresh per entry is started at a time.
+     */
+    boolean startRefresh(Entry entry, long now, boolean prefetch) {
+        if (entry.refreshStarted != 0 && now - entry.refreshStarted < REFRESH_TIMEOUT) {
+            return false;
+        }
+        boolean stale = now >= entry.expires;
+        boolean prefetchDue = prefetch && entry.hits >= PREFETCH_MIN_HITS &&
+                (entry.expires - now) * 10 < entry.expires - entry.stored;
+        if (!stale && !prefetchDue) {
+            return false;
+        }
+        entry.refreshStarted = now;
+        return true;
+    }
+
+    /**
+     * Stores a successful or NXDOMAIN response. Truncated, failed and unparsable responses are
+     * ignored.
+     */
+    void put(byte[] response) {
+        if (response.length < HEADER_LENGTH) {
+            return;
+        }
+        int flags = readShort(response, 2);
+        int rcode = flags & 0xF;
+        // QR must be set, OPCODE must be QUERY and TC must be clear
+        if ((flags & 0x8000) == 0 || (flags & 0x7800) != 0 || (flags & 0x0200) != 0 ||
+                (rcode != RCODE_NOERROR && rcode != RCODE_NXDOMAIN)) {
+            return;
+        }
+        String key = getKey(response);
+        if (key == null) {
+            return;
+        }
+        int answers = readShort(response, 6);
+        int records = answers + readShort(response, 8) + readShort(response, 10);
+        int[] ttlOffsets = new int[records];
+        int ttlCount = 0;
+        long minTtl = Long.MAX_VALUE;
+        int offset = HEADER_LENGTH + key.length();
+        for (int i = 0; i < records; i++) {
+            offset = skipName(response, offset);
+            if (offset < 0 || offset + 10 > response.length) {
+                return;
+            }
+            if (readShort(response, offset) != TYPE_OPT) {
+                ttlOffsets[ttlCount++] = offset + 4;
+                minTtl = Math.min(minTtl, readInt(response, offset + 4));
+            }
+            offset += 10 + readShort(response, offset + 8);
+        }
+        if (offset > response.length || minTtl == Long.MAX_VALUE) {
+            return;
+        }
+        long ttl = Math.max(MIN_TTL, Math.min(MAX_TTL, minTtl));
+        if (answers == 0) {
+            ttl = Math.min(ttl, MAX_NEGATIVE_TTL);
+        }
+        long now = System.currentTimeMillis();
+        put(key, new Entry(response, Arrays.copyOf(ttlOffsets, ttlCount), now, now + ttl * 1000));
+        dirty = true;
+    }
+
+    private void put(String key, Entry entry) {
+        remove(key);
+        entries.put(key, entry);
+        bytes += entry.response.length;
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (bytes > MAX_BYTES && iterator.hasNext()) {
+            bytes -= iterator.next().response.length;
+            iterator.remove();
+        }
+    }
+
+    private void remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            bytes -= entry.response.length;
+        }
+    }
+
+    void clear() {
+        entries.clear();
+        bytes = 0;
+        dirty = false;
+    }
+
+    /**
+     * @return whether entries were stored since the last {@link #snapshot()} or {@link #load(File, long)}
+     */
+    boolean isDirty() {
+        return dirty;
+    }
+
+    /**
+     * Takes the entries to save, least recently used first, and marks the cache as saved.
+     * Entries are never modified in the fields that are saved, so the copy can be written
+     * without holding the cache.
+     */
+    ArrayList<Entry> snapshot() {
+        dirty = false;
+        return new ArrayList<>(entries.values());
+    }
+
+    /**
+     * Writes entries taken by {@link #snapshot()} to a file. The snapshot is written to a
+     * temporary file first so an interrupted write never replaces a good one.
+     */
+    static void save(File file, ArrayList<Entry> entries) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeInt(entries.size());
+            for (Entry entry : entries) {
+                out.writeLong(entry.stored);
+                out.writeLong(entry.expires);
+                out.writeInt(entry.response.length);
+                out.write(entry.response);
+                out.writeShort(entry.ttlOffsets.length);
+                for (int offset : entry.ttlOffsets) {
+                    out.writeShort(offset);
+                }
+            }
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Unable to replace " + file.getPath());
+        }
+    }
+
+    /**
+     * Restores the entries of a snapshot that have not expired before keepUntil. Their stored
+     * time is kept, so hits are answered with the TTL that actually remains.
+     *
+     * @param keepUntil entries that expired before this time are dropped
+     * @return the number of entries restored
+     */
+    int load(File file, long keepUntil) throws IOException {
+        if (!file.exists()) {
+            return 0;
+        }
+        int restored = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+                return 0;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                long stored = in.readLong();
+                long expires = in.readLong();
+                int length = in.readInt();
+                if (length < HEADER_LENGTH || length > 65535) {
+                    break;
+                }
+                byte[] response = new byte[length];
+                in.readFully(response);
+                int[] ttlOffsets = new int[in.readUnsignedShort()];
+                for (int j = 0; j < ttlOffsets.length; j++) {
+                    ttlOffsets[j] = in.readUnsignedShort();
+                    if (ttlOffsets[j] + 4 > length) {
+                        return restored;
+                    }
+                }
+                String key = getKey(response);
+                if (key != null && expires > keepUntil) {
+                    put(key, new Entry(response, ttlOffsets, stored, expires));
+                    restored++;
+                }
+            }
+        }
+        dirty = false;
+        return restored;
+    }
+
+    /**
+     * @return the offset following the name starting at offset, or -1 if it is malformed
+     */
+    static int skipName(byte[] message, int offset) {
+        while (offset < message.length) {
+            int length = message[offset] & 0xFF;
+            if (length == 0) {
+                return offset + 1;
+            }
+            if ((length & 0xC0) == 0xC0) {//Compression pointer
+                return offset + 2;
+            }
+            if ((length & 0xC0) != 0) {
+                return -1;
+            }
+            offset += length + 1;
+        }
+        return -1;
+    }
+
+    static int readShort(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+    }
+
+    private static long readInt(byte[] data, int offset) {
+        return ((long) readShort(data, offset) << 16) | readShort(data, offset + 2);
+    }
+
+    private static void writeInt(byte[] data, int offset, long value) {
+        data[offset] = (byte) (value >> 24);
+        data[offset + 1] = (byte) (value >> 16);
+        data[offset + 2] = (byte) (value >> 8);
+        data[offset + 3] = (byte) value;
+    }
+}
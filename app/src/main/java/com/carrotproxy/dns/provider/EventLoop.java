@@ -0,0 +1,235 @@
+package com.carrotproxy.dns.provider;
+
+import android.os.ParcelFileDescriptor;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructPollfd;
+import com.carrotproxy.dns.service.DaedalusVpnService;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Daedalus Project
+ *
+ * @author iTX Technologies
+ * @link https://itxtech.org
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ */
+final class EventLoop {
+    private static final int INITIAL_CAPACITY = 16;
+    private static final byte[] WAKEUP = new byte[1];
+
+    /**
+     * Called on the provider thread when a registered descriptor becomes ready.
+     */
+    interface Callback {
+        void onReady(Registration registration, int revents) throws DaedalusVpnService.VpnNetworkException;
+    }
+
+    /**
+     * A descriptor registered with the loop. The poll struct is created once and reused for
+     * every poll() call until the registration is cancelled.
+     */
+    static final class Registration {
+        private final EventLoop loop;
+        private final StructPollfd pollFd = new StructPollfd();
+        private final Callback callback;
+        // The duplicated descriptor of a socket, closed with the registration
+        private final ParcelFileDescriptor owned;
+        private int index = -1;
+
+        private Registration(EventLoop loop, FileDescriptor fd, ParcelFileDescriptor owned, int events, Callback callback) {
+            this.loop = loop;
+            this.owned = owned;
+            this.callback = callback;
+            pollFd.fd = fd;
+            pollFd.events = (short) events;
+        }
+
+        void setEvents(int events) {
+            pollFd.events = (short) events;
+        }
+
+        int getEvents() {
+            return pollFd.events;
+        }
+
+        int revents() {
+            return index < 0 ? 0 : pollFd.revents;
+        }
+
+        boolean isRegistered() {
+            return index >= 0;
+        }
+
+        void cancel() {
+            loop.unregister(this);
+        }
+    }
+
+    private Registration[] registrations = new Registration[INITIAL_CAPACITY];
+    // Os.poll() stops at the first null entry, so the tail of the array can stay unused
+    private StructPollfd[] polls = new StructPollfd[INITIAL_CAPACITY];
+    private Registration[] ready = new Registration[INITIAL_CAPACITY];
+    private int count = 0;
+
+    // Pipe other threads write a byte to so poll() returns, null until openWakeup()
+    private FileDescriptor wakeupRead = null;
+    // Written and closed under the lock, so a late wakeup() never writes to a closed or reused fd
+    private final Object wakeupLock = new Object();
+    private FileDescriptor wakeupWrite = null;
+    private final AtomicBoolean wakeupPending = new AtomicBoolean(false);
+    private final byte[] wakeupBuffer = new byte[64];
+
+    Registration register(FileDescriptor fd, int events, Callback callback) {
+        return register(fd, null, events, callback);
+    }
+
+    /**
+     * Registers the duplicate of a socket descriptor, as returned by
+     * {@link ParcelFileDescriptor#fromSocket}. The registration owns it and closes it when
+     * cancelled, the socket itself stays with the caller.
+     */
+    Registration register(ParcelFileDescriptor descriptor, int events, Callback callback) {
+        return register(descriptor.getFileDescriptor(), descriptor, events, callback);
+    }
+
+    private Registration register(FileDescriptor fd, ParcelFileDescriptor owned, int events, Callback callback) {
+        Registration registration = new Registration(this, fd, owned, events, callback);
+        if (count == registrations.length) {
+            int capacity = registrations.length * 2;
+            registrations = Arrays.copyOf(registrations, capacity);
+            polls = Arrays.copyOf(polls, capacity);
+            ready = new Registration[capacity];
+        }
+        registration.index = count;
+        registrations[count] = registration;
+        polls[count] = registration.pollFd;
+        count++;
+        return registration;
+    }
+
+    void unregister(Registration registration) {
+        int index = registration.index;
+        if (index < 0) {
+            return;
+        }
+        int last = --count;
+        if (index != last) {
+            Registration moved = registrations[last];
+            moved.index = index;
+            registrations[index] = moved;
+            polls[index] = moved.pollFd;
+        }
+        registrations[last] = null;
+        polls[last] = null;
+        registration.index = -1;
+        if (registration.owned != null) {
+            try {
+                registration.owned.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Lets other threads end a poll() through {@link #wakeup()}. Whatever they handed over is
+     * picked up by the provider thread after dispatch().
+     */
+    void openWakeup() throws ErrnoException {
+        FileDescriptor[] pipe = Os.pipe();
+        wakeupRead = pipe[0];
+        synchronized (wakeupLock) {
+            wakeupWrite = pipe[1];
+        }
+        register(wakeupRead, OsConstants.POLLIN, (registration, revents) -> {
+            try {
+                Os.read(wakeupRead, wakeupBuffer, 0, wakeupBuffer.length);
+            } catch (ErrnoException | InterruptedIOException ignored) {
+            }
+            //Cleared before the handed over work is taken, so later hand-overs write again
+            wakeupPending.set(false);
+        });
+    }
+
+    /**
+     * Called from any thread after handing work to the provider thread. Wake-ups before the
+     * loop has run again are merged, so a burst costs a single write.
+     */
+    void wakeup() {
+        //The pipe holds at most one pending byte, so the write never blocks with the lock held
+        synchronized (wakeupLock) {
+            if (wakeupWrite != null && wakeupPending.compareAndSet(false, true)) {
+                try {
+                    Os.write(wakeupWrite, WAKEUP, 0, 1);
+                } catch (ErrnoException | InterruptedIOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes the wake-up pipe, later wakeup() calls from threads still running do nothing.
+     */
+    void closeWakeup() {
+        FileDescriptor read = wakeupRead;
+        wakeupRead = null;
+        synchronized (wakeupLock) {
+            FileDescriptor write = wakeupWrite;
+            wakeupWrite = null;
+            close(write);
+        }
+        close(read);
+    }
+
+    private static void close(FileDescriptor fd) {
+        if (fd != null) {
+            try {
+                Os.close(fd);
+            } catch (ErrnoException ignored) {
+            }
+        }
+    }
+
+    int size() {
+        return count;
+    }
+
+    int poll(int timeout) throws ErrnoException {
+        for (int i = 0; i < count; i++) {
+            polls[i].revents = 0;
+        }
+        return Os.poll(polls, timeout);
+    }
+
+    /**
+     * Invokes the callback of every ready registration. Callbacks may register or cancel
+     * descriptors; registrations cancelled before their turn are skipped.
+     */
+    void dispatch() throws DaedalusVpnService.VpnNetworkException {
+        Registration[] batch = ready;
+        int readyCount = 0;
+        for (int i = 0; i < count; i++) {
+            Registration registration = registrations[i];
+            if (registration.callback != null && registration.pollFd.revents != 0) {
+                batch[readyCount++] = registration;
+            }
+        }
+        for (int i = 0; i < readyCount; i++) {
+            Registration registration = batch[i];
+            batch[i] = null;
+            if (registration.isRegistered()) {
+                registration.callback.onReady(registration, registration.pollFd.revents);
+            }
+        }
+    }
+}
@@ -5,7 +5,6 @@ import android.util.Base64;
 import okhttp3.*;
 import com.carrotproxy.dns.service.DaedalusVpnService;
 import org.minidns.dnsmessage.DnsMessage;
-import org.pcap4j.packet.IpPacket;
 
 import java.io.IOException;
 
@@ -29,7 +28,7 @@ public class HttpsIetfProvider extends HttpsProvider {
     }
 
     @Override
-    protected void sendRequestToServer(IpPacket parsedPacket, DnsMessage message, String uri) {
+    protected void sendRequestToServer(DevicePacket parsedPacket, DnsMessage message, String uri) {
         whqList.add(new WaitingHttpsRequest(parsedPacket) {
             @Override
             public void doRequest() {
@@ -46,17 +45,15 @@ public class HttpsIetfProvider extends HttpsProvider {
                 HTTP_CLIENT.newCall(request).enqueue(new Callback() {
                     @Override
                     public void onFailure(Call call, IOException e) {
-                        result = rawRequest;
-                        completed = true;
+                        complete(rawRequest);
                     }
 
                     @Override
                     public void onResponse(Call call, Response response) {
                         if (response.isSuccessful()) {
                             try {
-                                result = new DnsMessage(response.body().bytes()).asBuilder()
-                                        .setId(id).build().toArray();
-                                completed = true;
+                                complete(new DnsMessage(response.body().bytes()).asBuilder()
+                                        .setId(id).build().toArray());
                             } catch (Exception ignored) {//throw IllegalArgumentException when response is not correct
                             }
                         }
@@ -10,7 +10,6 @@ import com.carrotproxy.dns.service.DaedalusVpnService;
 import org.minidns.dnsmessage.DnsMessage;
 import org.minidns.dnsname.DnsName;
 import org.minidns.record.*;
-import org.pcap4j.packet.IpPacket;
 
 import java.io.IOException;
 
@@ -38,7 +37,7 @@ public class HttpsJsonProvider extends HttpsProvider {
     }
 
     @Override
-    protected void sendRequestToServer(IpPacket parsedPacket, DnsMessage message, String uri) {
+    protected void sendRequestToServer(DevicePacket parsedPacket, DnsMessage message, String uri) {
         whqList.add(new WaitingHttpsRequest(parsedPacket) {
             @Override
             public void doRequest() {
@@ -53,8 +52,7 @@ public class HttpsJsonProvider extends HttpsProvider {
                 HTTP_CLIENT.newCall(request).enqueue(new Callback() {
                     @Override
                     public void onFailure(Call call, IOException e) {
-                        result = rawRequest;
-                        completed = true;
+                        complete(rawRequest);
                     }
 
                     @Override
@@ -115,8 +113,7 @@ public class HttpsJsonProvider extends HttpsProvider {
                                         }
                                     }
                                 }
-                                result = msg.setQrFlag(true).build().toArray();
-                                completed = true;
+                                complete(msg.setQrFlag(true).build().toArray());
                             } catch (Exception ignored) {//throw com.google.gson.JsonSyntaxException when response is not correct
                             }
                         }
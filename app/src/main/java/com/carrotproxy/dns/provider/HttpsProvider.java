@@ -1,29 +1,17 @@
 package com.carrotproxy.dns.provider;
 
 import android.os.ParcelFileDescriptor;
-import android.system.Os;
-import android.system.OsConstants;
-import android.system.StructPollfd;
-import android.util.Log;
-import androidx.annotation.NonNull;
 import okhttp3.OkHttpClient;
 import com.carrotproxy.dns.Daedalus;
 import com.carrotproxy.dns.service.DaedalusVpnService;
 import com.carrotproxy.dns.util.Logger;
 import com.carrotproxy.dns.server.DnsServerHelper;
 import org.minidns.dnsmessage.DnsMessage;
-import org.pcap4j.packet.IpPacket;
-import org.pcap4j.packet.IpSelector;
-import org.pcap4j.packet.UdpPacket;
 
-import java.io.FileDescriptor;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.util.Arrays;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -41,9 +29,7 @@ abstract public class HttpsProvider extends Provider {
 
     public static final String HTTPS_SUFFIX = "https://";
 
-    private static final String TAG = "HttpsProvider";
-
-    final WhqList whqList = new WhqList();
+    final WhqList whqList = new WhqList(() -> eventLoop.wakeup());
 
     HttpsProvider(ParcelFileDescriptor descriptor, DaedalusVpnService service) {
         super(descriptor, service);
@@ -66,91 +52,31 @@ abstract public class HttpsProvider extends Provider {
                 .build();
     }
 
-    public void process() {
-        try {
-            FileDescriptor[] pipes = Os.pipe();
-            mInterruptFd = pipes[0];
-            mBlockFd = pipes[1];
-            FileInputStream inputStream = new FileInputStream(descriptor.getFileDescriptor());
-            FileOutputStream outputStream = new FileOutputStream(descriptor.getFileDescriptor());
-
-            byte[] packet = new byte[32767];
-            while (running) {
-                StructPollfd deviceFd = new StructPollfd();
-                deviceFd.fd = inputStream.getFD();
-                deviceFd.events = (short) OsConstants.POLLIN;
-                StructPollfd blockFd = new StructPollfd();
-                blockFd.fd = mBlockFd;
-                blockFd.events = (short) (OsConstants.POLLHUP | OsConstants.POLLERR);
-
-                if (!deviceWrites.isEmpty())
-                    deviceFd.events |= (short) OsConstants.POLLOUT;
-
-                StructPollfd[] polls = new StructPollfd[2];
-                polls[0] = deviceFd;
-                polls[1] = blockFd;
-                Os.poll(polls, 100);
-                if (blockFd.revents != 0) {
-                    Log.i(TAG, "Told to stop VPN");
-                    running = false;
-                    return;
-                }
-
-                Iterator<WaitingHttpsRequest> iterator = whqList.iterator();
-                while (iterator.hasNext()) {
-                    WaitingHttpsRequest request = iterator.next();
-                    if (request.completed) {
-                        handleDnsResponse(request.packet, request.result);
-                        iterator.remove();
-                    }
-                }
-
-                if ((deviceFd.revents & OsConstants.POLLOUT) != 0) {
-                    Log.d(TAG, "Write to device");
-                    writeToDevice(outputStream);
-                }
-                if ((deviceFd.revents & OsConstants.POLLIN) != 0) {
-                    Log.d(TAG, "Read from device");
-                    readPacketFromDevice(inputStream, packet);
-                }
-                service.providerLoopCallback();
-            }
-        } catch (Exception e) {
-            Logger.logException(e);
+    @Override
+    protected void handlePendingResponses() {
+        WaitingHttpsRequest request;
+        while ((request = whqList.poll()) != null) {
+            handleUpstreamResponse(request.packet, request.result);
         }
     }
 
     @Override
-    protected void handleDnsRequest(byte[] packetData) {
-        IpPacket parsedPacket;
-        try {
-            parsedPacket = (IpPacket) IpSelector.newPacket(packetData, 0, packetData.length);
-        } catch (Exception e) {
-            return;
-        }
-
-        if (!(parsedPacket.getPayload() instanceof UdpPacket)) {
-            return;
-        }
-
-        InetAddress destAddr = parsedPacket.getHeader().getDstAddr();
-        if (destAddr == null)
-            return;
+    protected Forward decodeDnsRequest(DevicePacket parsedPacket) {
         String uri;
         try {
-            uri = service.dnsServers.get(destAddr.getHostAddress()).getAddress();//https uri
+            uri = service.dnsServers.get(parsedPacket.getDestinationAddress().getHostAddress()).getAddress();//https uri
         } catch (Exception e) {
             Logger.logException(e);
-            return;
+            parsedPacket.release();
+            return null;
         }
 
-        UdpPacket parsedUdp = (UdpPacket) parsedPacket.getPayload();
-
-        if (parsedUdp.getPayload() == null) {
-            return;
+        if (parsedPacket.getPayloadLength() == 0) {
+            parsedPacket.release();
+            return null;
         }
 
-        byte[] dnsRawData = (parsedUdp).getPayload().getRawData();
+        byte[] dnsRawData = parsedPacket.takePayload();
         DnsMessage dnsMsg;
         try {
             dnsMsg = new DnsMessage(dnsRawData);
@@ -158,45 +84,73 @@ abstract public class HttpsProvider extends Provider {
                 Logger.debug("DnsRequest: " + dnsMsg.toString());
             }
         } catch (IOException e) {
-            return;
+            parsedPacket.release();
+            return null;
         }
         if (dnsMsg.getQuestion() == null) {
             Logger.debug("handleDnsRequest: Discarding DNS packet with no query " + dnsMsg);
-            return;
+            parsedPacket.release();
+            return null;
         }
 
-        if (!resolve(parsedPacket, dnsMsg) && uri != null) {
-            sendRequestToServer(parsedPacket, dnsMsg, uri);
-            //SHOULD use a DNS ID of 0 in every DNS request (according to draft-ietf-doh-dns-over-https-11)
+        if (resolve(parsedPacket, dnsMsg, dnsRawData)) {
+            return null;
         }
+        if (uri == null) {
+            parsedPacket.release();
+            return null;
+        }
+        //SHOULD use a DNS ID of 0 in every DNS request (according to draft-ietf-doh-dns-over-https-11)
+        return () -> sendRequestToServer(parsedPacket, dnsMsg, uri);
     }
 
-    protected abstract void sendRequestToServer(IpPacket parsedPacket, DnsMessage message, String uri);
+    protected abstract void sendRequestToServer(DevicePacket parsedPacket, DnsMessage message, String uri);
     //uri example: 1.1.1.1:1234/dnsQuery. The specified provider will add https:// and parameters
 
     public abstract static class WaitingHttpsRequest {
-        public boolean completed = false;
         public byte[] result;
-        public final IpPacket packet;
+        public final DevicePacket packet;
+        private WhqList list;
 
-        public WaitingHttpsRequest(IpPacket packet) {
+        public WaitingHttpsRequest(DevicePacket packet) {
             this.packet = packet;
         }
 
         public abstract void doRequest();
+
+        /**
+         * Hands the response to the provider thread, called once from an OkHttp thread.
+         */
+        protected void complete(byte[] result) {
+            this.result = result;
+            list.complete(this);
+        }
     }
 
-    public static class WhqList implements Iterable<WaitingHttpsRequest> {
-        private final LinkedList<WaitingHttpsRequest> list = new LinkedList<>();
+    /**
+     * Requests whose response has arrived. OkHttp threads add to the queue and wake the
+     * provider thread, which writes the responses right away instead of polling for them.
+     */
+    public static class WhqList {
+        private final ConcurrentLinkedQueue<WaitingHttpsRequest> completed = new ConcurrentLinkedQueue<>();
+        private final Runnable wakeup;
+
+        WhqList(Runnable wakeup) {
+            this.wakeup = wakeup;
+        }
 
         public void add(WaitingHttpsRequest request) {
-            list.add(request);
+            request.list = this;
             request.doRequest();
         }
 
-        @NonNull
-        public Iterator<WaitingHttpsRequest> iterator() {
-            return list.iterator();
+        void complete(WaitingHttpsRequest request) {
+            completed.add(request);
+            wakeup.run();
+        }
+
+        WaitingHttpsRequest poll() {
+            return completed.poll();
         }
     }
 }
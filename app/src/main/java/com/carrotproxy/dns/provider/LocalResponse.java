@@ -0,0 +1,81 @@
+package com.carrotproxy.dns.provider;
+
+import java.util.Arrays;
+
+/**
+ * Daedalus Project
+ *
+ * @author iTX Technologies
+ * @link https://itxtech.org
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Builds responses to queries answered by the rules directly from the request bytes: the
+ * header and question are copied, the flags patched and at most one answer record appended.
+ */
+final class LocalResponse {
+    static final int RCODE_NOERROR = 0;
+    static final int RCODE_NXDOMAIN = 3;
+    static final int TYPE_A = 1;
+    static final int TYPE_AAAA = 28;
+    static final byte[] UNSPECIFIED_A = new byte[4];
+    static final byte[] UNSPECIFIED_AAAA = new byte[16];
+
+    private static final int TTL = 64;
+    private static final int RECORD_HEADER_LENGTH = 12;
+
+    /**
+     * @return a response without answers, NXDOMAIN or NODATA depending on the rcode, or null if
+     * the request does not carry exactly one question
+     */
+    static byte[] empty(byte[] request, int rcode) {
+        return build(request, rcode, 0, null);
+    }
+
+    /**
+     * @return a response answering the question with one record, or null if the request does
+     * not carry exactly one question
+     */
+    static byte[] answer(byte[] request, int type, byte[] rdata) {
+        return build(request, RCODE_NOERROR, type, rdata);
+    }
+
+    private static byte[] build(byte[] request, int rcode, int type, byte[] rdata) {
+        if (request.length < DnsCache.HEADER_LENGTH || DnsCache.readShort(request, 4) != 1) {
+            return null;
+        }
+        int end = DnsCache.skipName(request, DnsCache.HEADER_LENGTH);
+        if (end < 0 || end + 4 > request.length) {
+            return null;
+        }
+        end += 4;
+        //Records following the question, such as an EDNS OPT record, are cut off
+        byte[] response = Arrays.copyOf(request, rdata == null ? end : end + RECORD_HEADER_LENGTH + rdata.length);
+        //QR set, OPCODE and RD kept, RA set
+        response[2] = (byte) (0x80 | (request[2] & 0x79));
+        response[3] = (byte) (0x80 | rcode);
+        response[6] = 0;
+        response[7] = (byte) (rdata == null ? 0 : 1);
+        Arrays.fill(response, 8, DnsCache.HEADER_LENGTH, (byte) 0);
+        if (rdata != null) {
+            //The owner name points to the question name at offset 12
+            response[end] = (byte) 0xC0;
+            response[end + 1] = (byte) DnsCache.HEADER_LENGTH;
+            response[end + 2] = (byte) (type >> 8);
+            response[end + 3] = (byte) type;
+            response[end + 4] = request[end - 2];
+            response[end + 5] = request[end - 1];
+            response[end + 6] = (byte) (TTL >> 24);
+            response[end + 7] = (byte) (TTL >> 16);
+            response[end + 8] = (byte) (TTL >> 8);
+            response[end + 9] = (byte) TTL;
+            response[end + 10] = (byte) (rdata.length >> 8);
+            response[end + 11] = (byte) rdata.length;
+            System.arraycopy(rdata, 0, response, end + RECORD_HEADER_LENGTH, rdata.length);
+        }
+        return response;
+    }
+}
@@ -0,0 +1,65 @@
+package com.carrotproxy.dns.provider;
+
+/**
+ * Daedalus Project
+ *
+ * @author iTX Technologies
+ * @link https://itxtech.org
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Bounded FIFO of packets waiting to be written to the device, each an array of exactly the
+ * packet length, so a full queue holds only the bytes it has to write.
+ * Workers offer while the provider thread writes, only the provider thread takes packets out.
+ */
+final class PacketQueue {
+    private final byte[][] buffers;
+    private int head = 0;
+    private int size = 0;
+
+    PacketQueue(int capacity) {
+        buffers = new byte[capacity][];
+    }
+
+    /**
+     * @return false if the queue is full
+     */
+    synchronized boolean offer(byte[] packet) {
+        if (size == buffers.length) {
+            return false;
+        }
+        buffers[(head + size) % buffers.length] = packet;
+        size++;
+        return true;
+    }
+
+    synchronized byte[] peek() {
+        return buffers[head];
+    }
+
+    /**
+     * Removes the head packet.
+     */
+    synchronized byte[] poll() {
+        byte[] buffer = buffers[head];
+        buffers[head] = null;
+        head = (head + 1) % buffers.length;
+        size--;
+        return buffer;
+    }
+
+    synchronized boolean isEmpty() {
+        return size == 0;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    int capacity() {
+        return buffers.length;
+    }
+}
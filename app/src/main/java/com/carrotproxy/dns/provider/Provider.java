@@ -1,26 +1,33 @@
 package com.carrotproxy.dns.provider;
 
 import android.os.ParcelFileDescriptor;
+import android.system.ErrnoException;
 import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
 import com.carrotproxy.dns.Daedalus;
 import com.carrotproxy.dns.service.DaedalusVpnService;
 import com.carrotproxy.dns.util.Logger;
+import com.carrotproxy.dns.util.RuleAddress;
+import com.carrotproxy.dns.util.RuleMatch;
 import com.carrotproxy.dns.util.RuleResolver;
 import org.minidns.dnsmessage.DnsMessage;
-import org.minidns.record.A;
-import org.minidns.record.AAAA;
 import org.minidns.record.Record;
-import org.pcap4j.packet.*;
 
+import java.io.File;
 import java.io.FileDescriptor;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.net.Inet4Address;
-import java.net.Inet6Address;
-import java.util.Arrays;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Daedalus Project
@@ -34,6 +41,20 @@ import java.util.Queue;
  * (at your option) any later version.
  */
 public abstract class Provider {
+    private static final String TAG = "Provider";
+    private static final long CACHE_SAVE_INTERVAL = 5 * 60 * 1000;
+    private static final int MAX_DEVICE_WRITES = 256;
+    // Large enough for any packet the interface MTU lets through
+    private static final int READ_BUFFER_SIZE = 32767;
+    // Packets moved per wake-up in each direction, so a burst does not starve the upstreams
+    private static final int DEVICE_BATCH = 64;
+    private static final int MAX_WORKERS = 4;
+
+    // How queries for a name blocked by the rules are answered
+    static final int BLOCK_MODE_ADDRESS = 0;
+    static final int BLOCK_MODE_NXDOMAIN = 1;
+    static final int BLOCK_MODE_NODATA = 2;
+
     protected ParcelFileDescriptor descriptor;
     protected DaedalusVpnService service;
     protected boolean running = false;
@@ -41,19 +62,226 @@ public abstract class Provider {
 
     protected FileDescriptor mBlockFd = null;
     protected FileDescriptor mInterruptFd = null;
-    protected final Queue<byte[]> deviceWrites = new LinkedList<>();
+    // Every packet is read here, the parsed query copies out what it needs
+    private final byte[] readBuffer = new byte[READ_BUFFER_SIZE];
+    // Reading from the device pauses while this is full, so writes can not pile up
+    final PacketQueue deviceWrites = new PacketQueue(MAX_DEVICE_WRITES);
+    private long droppedWrites = 0;
+    EventLoop eventLoop;
+    final DnsCache cache;
+    private final boolean serveStale;
+    private final boolean prefetch;
+    private final File cacheFile;
+    // Writes cache snapshots, so the disk is never waited on by the provider thread
+    private final ExecutorService cacheWriter;
+    private long cacheSaved = 0;
+    private final int blockMode;
+    // Queries forwarded only to refresh the cache, their client has already been answered
+    private final Set<DevicePacket> refreshQueries = Collections.newSetFromMap(new IdentityHashMap<>());
+    // Decode requests and answer them locally on a worker pool instead of the provider thread
+    private final boolean useWorkers;
+    private ThreadPoolExecutor workers = null;
+    // Requests decoded by the workers that have to go upstream, run on the provider thread
+    private final ConcurrentLinkedQueue<Forward> forwards = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Sends a request upstream. Upstream connections belong to the provider thread, so workers
+     * hand this back instead of forwarding themselves.
+     */
+    interface Forward {
+        void run() throws DaedalusVpnService.VpnNetworkException;
+    }
 
     Provider(ParcelFileDescriptor descriptor, DaedalusVpnService service) {
         this.descriptor = descriptor;
         this.service = service;
         dnsQueryTimes = 0;
+        cache = Daedalus.getPrefs().getBoolean("settings_dns_cache", false) ? new DnsCache() : null;
+        serveStale = Daedalus.getPrefs().getBoolean("settings_dns_serve_stale", false);
+        prefetch = Daedalus.getPrefs().getBoolean("settings_dns_prefetch", false);
+        cacheFile = cache != null && Daedalus.cachePath != null &&
+                Daedalus.getPrefs().getBoolean("settings_dns_cache_persist", false) ? new File(Daedalus.cachePath) : null;
+        cacheWriter = cacheFile == null ? null : Executors.newSingleThreadExecutor(r -> new Thread(r, "DnsCacheWriter"));
+        blockMode = Integer.parseInt(Daedalus.getPrefs().getString("settings_block_mode", "0"));
+        useWorkers = Daedalus.getPrefs().getBoolean("settings_dns_workers", false);
     }
 
     public final long getDnsQueryTimes() {
         return dnsQueryTimes;
     }
 
-    public abstract void process();
+    public final long getCacheHits() {
+        return cache == null ? 0 : cache.getHits();
+    }
+
+    public final long getCacheMisses() {
+        return cache == null ? 0 : cache.getMisses();
+    }
+
+    public void process() {
+        try {
+            FileDescriptor[] pipes = Os.pipe();
+            mInterruptFd = pipes[0];
+            mBlockFd = pipes[1];
+            FileDescriptor device = descriptor.getFileDescriptor();
+
+            eventLoop = new EventLoop();
+            eventLoop.openWakeup();
+            EventLoop.Registration deviceFd = eventLoop.register(device, OsConstants.POLLIN, null);
+            EventLoop.Registration blockFd = eventLoop.register(mBlockFd, OsConstants.POLLHUP | OsConstants.POLLERR, null);
+            loadCache();
+            startWorkers();
+            while (running) {
+                int events = deviceWrites.size() < deviceWrites.capacity() ? OsConstants.POLLIN : 0;
+                if (!deviceWrites.isEmpty()) {
+                    events |= OsConstants.POLLOUT;
+                }
+                deviceFd.setEvents(events);
+
+                eventLoop.poll(getPollTimeout());
+                if (blockFd.revents() != 0) {
+                    Log.i(TAG, "Told to stop VPN");
+                    running = false;
+                    return;
+                }
+
+                // Need to do this before reading from the device, otherwise a new insertion there could
+                // invalidate one of the sockets we want to read from either due to size or time out
+                // constraints
+                eventLoop.dispatch();
+                runForwards();
+                handlePendingResponses();
+
+                if ((deviceFd.revents() & OsConstants.POLLIN) != 0) {
+                    Log.d(TAG, "Read from device");
+                    readPacketsFromDevice(device);
+                }
+                //Flush everything answered during this wake-up at once, POLLOUT is only needed
+                //once the device would block
+                if (!deviceWrites.isEmpty()) {
+                    Log.d(TAG, "Write to device");
+                    writeToDevice(device);
+                }
+                service.providerLoopCallback();
+                if (cacheFile != null && System.currentTimeMillis() - cacheSaved > CACHE_SAVE_INTERVAL) {
+                    saveCache();
+                }
+            }
+        } catch (Exception e) {
+            Logger.logException(e);
+        } finally {
+            stopWorkers();
+            if (eventLoop != null) {
+                eventLoop.closeWakeup();
+            }
+            closeUpstreams();
+            if (cacheFile != null) {
+                saveCache();
+                cacheWriter.shutdown();
+                try {
+                    //The service may be torn down right after, give the last snapshot time to land
+                    cacheWriter.awaitTermination(2, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            Logger.info("Device writes: " + droppedWrites + " responses dropped");
+            if (cache != null) {
+                Logger.info("DNS cache: " + cache.getHits() + " hits (" + cache.getStaleHits() + " stale), " +
+                        cache.getMisses() + " misses, " + cache.size() + " entries");
+            }
+        }
+    }
+
+    private void startWorkers() {
+        if (!useWorkers) {
+            return;
+        }
+        int count = Math.min(Runtime.getRuntime().availableProcessors(), MAX_WORKERS);
+        //A full backlog makes the provider thread decode the request itself, which also stops
+        //it from reading more until the workers catch up
+        workers = new ThreadPoolExecutor(count, count, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(MAX_DEVICE_WRITES), r -> new Thread(r, "DaedalusWorker"),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        Logger.info("Provider: " + count + " workers");
+    }
+
+    private void stopWorkers() {
+        if (workers == null) {
+            return;
+        }
+        workers.shutdownNow();
+        try {
+            //The wake-up pipe must not be closed while a worker may still write to it
+            workers.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        workers = null;
+        forwards.clear();
+    }
+
+    private void runForwards() throws DaedalusVpnService.VpnNetworkException {
+        Forward forward;
+        while ((forward = forwards.poll()) != null) {
+            forward.run();
+        }
+    }
+
+    private void loadCache() {
+        if (cacheFile == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        cacheSaved = now;
+        try {
+            int restored = cache.load(cacheFile, serveStale ? now - DnsCache.STALE_WINDOW : now);
+            Logger.info("DNS cache: restored " + restored + " entries");
+        } catch (IOException e) {
+            Logger.logException(e);
+        }
+    }
+
+    /**
+     * Copies the entries under the cache lock, the file is written by the cache writer.
+     */
+    private void saveCache() {
+        cacheSaved = System.currentTimeMillis();
+        ArrayList<DnsCache.Entry> entries;
+        synchronized (cache) {
+            if (!cache.isDirty()) {
+                return;
+            }
+            entries = cache.snapshot();
+        }
+        cacheWriter.execute(() -> {
+            try {
+                DnsCache.save(cacheFile, entries);
+            } catch (IOException e) {
+                Logger.logException(e);
+            }
+        });
+    }
+
+    /**
+     * Releases upstream connections, called on the provider thread when the loop exits.
+     */
+    protected void closeUpstreams() {
+    }
+
+    /**
+     * @return poll() timeout in milliseconds, -1 to wait until a descriptor is ready
+     */
+    protected int getPollTimeout() {
+        return -1;
+    }
+
+    /**
+     * Hook for transports whose responses do not arrive through a registered descriptor. They
+     * wake the loop through {@link EventLoop#wakeup()} when a response is ready.
+     */
+    protected void handlePendingResponses() {
+    }
 
     public final void start() {
         running = true;
@@ -79,46 +307,117 @@ public abstract class Provider {
         }
     }
 
-    protected void queueDeviceWrite(IpPacket ipOutPacket) {
-        dnsQueryTimes++;
-        deviceWrites.add(ipOutPacket.getRawData());
+    /**
+     * @param packet a packet of exactly its own length, taken over by the queue
+     */
+    protected void queueDeviceWrite(byte[] packet) {
+        synchronized (deviceWrites) {
+            if (!deviceWrites.offer(packet)) {
+                //Only responses finished while reads are paused can find the queue full
+                droppedWrites++;
+                return;
+            }
+            dnsQueryTimes++;
+        }
     }
 
-    public boolean resolve(IpPacket parsedPacket, DnsMessage dnsMsg) {
+    /**
+     * Answers the request from the rules or the cache. Runs on a worker when the pool is
+     * enabled, the rules are immutable and the cache is only used under its lock.
+     *
+     * @return whether the request is done with, otherwise it has to be forwarded upstream
+     */
+    public boolean resolve(DevicePacket parsedPacket, DnsMessage dnsMsg, byte[] dnsRawData) {
         String dnsQueryName = dnsMsg.getQuestion().name.toString();
+        Record.TYPE type = dnsMsg.getQuestion().type;
 
-        try {
-            String response = RuleResolver.resolve(dnsQueryName, dnsMsg.getQuestion().type);
-            if (response != null && dnsMsg.getQuestion().type == Record.TYPE.A) {
-                Logger.info("Provider: Resolved " + dnsQueryName + "  Local resolver response: " + response);
-                DnsMessage.Builder builder = dnsMsg.asBuilder()
-                        .setQrFlag(true)
-                        .addAnswer(new Record<>(dnsQueryName, Record.TYPE.A, 1, 64,
-                                new A(Inet4Address.getByName(response).getAddress())));
-                handleDnsResponse(parsedPacket, builder.build().toArray());
-                return true;
-            } else if (response != null && dnsMsg.getQuestion().type == Record.TYPE.AAAA) {
-                Logger.info("Provider: Resolved " + dnsQueryName + "  Local resolver response: " + response);
-                DnsMessage.Builder builder = dnsMsg.asBuilder()
-                        .setQrFlag(true)
-                        .addAnswer(new Record<>(dnsQueryName, Record.TYPE.AAAA, 1, 64,
-                                new AAAA(Inet6Address.getByName(response).getAddress())));
-                handleDnsResponse(parsedPacket, builder.build().toArray());
-                return true;
+        //Every other type of a name with rules is answered here too, so blocked names never reach upstream
+        RuleMatch match = RuleResolver.resolve(dnsQueryName, type);
+        byte[] answer = match == null ? null : answerLocally(type, match.getAddress(), match.isBlocked(), dnsRawData);
+        if (answer != null) {
+            Logger.info("Provider: Resolved " + dnsQueryName + " " + type + "  Local resolver response: " + match);
+            handleDnsResponse(parsedPacket, answer);
+            return true;
+        }
+        if (cache != null) {
+            String key = DnsCache.getKey(dnsRawData);
+            long now = System.currentTimeMillis();
+            byte[] cached = null;
+            boolean refresh = false;
+            synchronized (cache) {
+                DnsCache.Entry entry = key == null ? null : cache.lookup(key, now, serveStale);
+                if (entry != null) {
+                    cached = cache.answer(entry, dnsRawData, now);
+                    refresh = cache.startRefresh(entry, now, prefetch);
+                    if (refresh) {
+                        // Let the transport forward the query, its answer only refreshes the cache
+                        if (refreshQueries.size() >= 256) {
+                            refreshQueries.clear();
+                        }
+                        refreshQueries.add(parsedPacket);
+                    }
+                }
+            }
+            if (cached != null) {
+                handleDnsResponse(parsedPacket, cached);
+                return !refresh;
             }
-        } catch (Exception e) {
-            Logger.logException(e);
         }
         return false;
     }
 
+    /**
+     * Answers a query for a name that has rules, by appending the record data stored with the
+     * rule to a copy of the request.
+     *
+     * @param address the rule for the queried type, or null if the rules give none
+     * @param blocked whether the rules map the name to the unspecified address
+     * @return the response, or null if the request is malformed
+     */
+    private byte[] answerLocally(Record.TYPE type, RuleAddress address, boolean blocked, byte[] request) {
+        if (blocked && blockMode == BLOCK_MODE_NXDOMAIN) {
+            return LocalResponse.empty(request, LocalResponse.RCODE_NXDOMAIN);
+        }
+        if (blocked && blockMode == BLOCK_MODE_ADDRESS) {
+            if (type == Record.TYPE.A) {
+                return LocalResponse.answer(request, LocalResponse.TYPE_A, LocalResponse.UNSPECIFIED_A);
+            } else if (type == Record.TYPE.AAAA) {
+                return LocalResponse.answer(request, LocalResponse.TYPE_AAAA, LocalResponse.UNSPECIFIED_AAAA);
+            }
+        }
+        if (!blocked && address != null && address.isValid()) {
+            return LocalResponse.answer(request, type == Record.TYPE.A ? LocalResponse.TYPE_A : LocalResponse.TYPE_AAAA,
+                    address.getData());
+        }
+        return LocalResponse.empty(request, LocalResponse.RCODE_NOERROR);
+    }
+
+    /**
+     * Handles a response received from an upstream DNS server, caching it before it is written
+     * to the device.
+     *
+     * @param requestPacket   The original request packet
+     * @param responsePayload The payload of the response
+     */
+    void handleUpstreamResponse(DevicePacket requestPacket, byte[] responsePayload) {
+        if (cache != null) {
+            synchronized (cache) {
+                cache.put(responsePayload);
+                if (refreshQueries.remove(requestPacket)) {
+                    return;
+                }
+            }
+        }
+        handleDnsResponse(requestPacket, responsePayload);
+    }
+
     /**
      * Handles a responsePayload from an upstream DNS server
      *
      * @param requestPacket   The original request packet
      * @param responsePayload The payload of the response
      */
-    void handleDnsResponse(IpPacket requestPacket, byte[] responsePayload) {
+    void handleDnsResponse(DevicePacket requestPacket, byte[] responsePayload) {
         if (Daedalus.getPrefs().getBoolean("settings_debug_output", false)) {
             try {
                 Logger.debug("DnsResponse: " + new DnsMessage(responsePayload).toString());
@@ -126,64 +425,89 @@ public abstract class Provider {
                 Logger.logException(e);
             }
         }
-        UdpPacket udpOutPacket = (UdpPacket) requestPacket.getPayload();
-        UdpPacket.Builder payLoadBuilder = new UdpPacket.Builder(udpOutPacket)
-                .srcPort(udpOutPacket.getHeader().getDstPort())
-                .dstPort(udpOutPacket.getHeader().getSrcPort())
-                .srcAddr(requestPacket.getHeader().getDstAddr())
-                .dstAddr(requestPacket.getHeader().getSrcAddr())
-                .correctChecksumAtBuild(true)
-                .correctLengthAtBuild(true)
-                .payloadBuilder(
-                        new UnknownPacket.Builder()
-                                .rawData(responsePayload)
-                );
-
-
-        IpPacket ipOutPacket;
-        if (requestPacket instanceof IpV4Packet) {
-            ipOutPacket = new IpV4Packet.Builder((IpV4Packet) requestPacket)
-                    .srcAddr((Inet4Address) requestPacket.getHeader().getDstAddr())
-                    .dstAddr((Inet4Address) requestPacket.getHeader().getSrcAddr())
-                    .correctChecksumAtBuild(true)
-                    .correctLengthAtBuild(true)
-                    .payloadBuilder(payLoadBuilder)
-                    .build();
-
-        } else {
-            ipOutPacket = new IpV6Packet.Builder((IpV6Packet) requestPacket)
-                    .srcAddr((Inet6Address) requestPacket.getHeader().getDstAddr())
-                    .dstAddr((Inet6Address) requestPacket.getHeader().getSrcAddr())
-                    .correctLengthAtBuild(true)
-                    .payloadBuilder(payLoadBuilder)
-                    .build();
+        if (requestPacket.isReleased()) {
+            //Already answered, from the cache before a refresh that outlived its tracking
+            return;
         }
-
-        queueDeviceWrite(ipOutPacket);
+        byte[] response = new byte[requestPacket.getResponseLength(responsePayload.length)];
+        requestPacket.writeResponse(responsePayload, response);
+        requestPacket.release();
+        queueDeviceWrite(response);
     }
 
-    protected void writeToDevice(FileOutputStream outFd) throws DaedalusVpnService.VpnNetworkException {
-        try {
-            outFd.write(deviceWrites.poll());
-        } catch (IOException e) {
-            throw new DaedalusVpnService.VpnNetworkException("Outgoing VPN output stream closed");
+    /**
+     * Writes queued packets until the queue is empty, the device would block or the batch is
+     * done. Whatever is left is written on the next POLLOUT.
+     */
+    protected void writeToDevice(FileDescriptor device) throws DaedalusVpnService.VpnNetworkException {
+        for (int i = 0; i < DEVICE_BATCH && !deviceWrites.isEmpty(); i++) {
+            try {
+                byte[] packet = deviceWrites.peek();
+                Os.write(device, packet, 0, packet.length);
+            } catch (ErrnoException e) {
+                if (e.errno == OsConstants.EAGAIN || e.errno == OsConstants.EINTR) {
+                    return;
+                }
+                throw new DaedalusVpnService.VpnNetworkException("Outgoing VPN output stream closed", e);
+            } catch (InterruptedIOException e) {
+                return;
+            }
+            deviceWrites.poll();
         }
     }
 
-    protected void readPacketFromDevice(FileInputStream inputStream, byte[] packet) throws DaedalusVpnService.VpnNetworkException {
-        // Read the outgoing packet from the input stream.
-        int length;
-        try {
-            length = inputStream.read(packet);
-        } catch (IOException e) {
-            throw new DaedalusVpnService.VpnNetworkException("Cannot read from device", e);
+    /**
+     * Reads packets until the device has no more, the batch is done or the write queue is full.
+     */
+    protected void readPacketsFromDevice(FileDescriptor device) throws DaedalusVpnService.VpnNetworkException {
+        for (int i = 0; i < DEVICE_BATCH && deviceWrites.size() < deviceWrites.capacity(); i++) {
+            int length;
+            try {
+                length = Os.read(device, readBuffer, 0, readBuffer.length);
+            } catch (ErrnoException e) {
+                if (e.errno == OsConstants.EAGAIN || e.errno == OsConstants.EINTR) {
+                    return;
+                }
+                throw new DaedalusVpnService.VpnNetworkException("Cannot read from device", e);
+            } catch (InterruptedIOException e) {
+                return;
+            }
+            if (length <= 0) {
+                return;
+            }
+            DevicePacket packet = DevicePacket.parse(readBuffer, length);
+            if (packet == null) {
+                Log.i(TAG, "readPacketsFromDevice: Discarding invalid or non-UDP IP packet");
+                continue;
+            }
+            handleDnsRequest(packet);
         }
-        if (length == 0) {
+    }
+
+    private void handleDnsRequest(DevicePacket packet) throws DaedalusVpnService.VpnNetworkException {
+        if (workers == null) {
+            Forward forward = decodeDnsRequest(packet);
+            if (forward != null) {
+                forward.run();
+            }
             return;
         }
-        final byte[] readPacket = Arrays.copyOfRange(packet, 0, length);
-        handleDnsRequest(readPacket);
+        workers.execute(() -> {
+            Forward forward = decodeDnsRequest(packet);
+            if (forward != null) {
+                forwards.add(forward);
+            }
+            //Also flushes the response the worker may have queued
+            eventLoop.wakeup();
+        });
     }
 
-    protected abstract void handleDnsRequest(byte[] packetData) throws DaedalusVpnService.VpnNetworkException;
+    /**
+     * Decodes the request and answers it locally if it can. With workers enabled this runs on
+     * a worker thread, so it must not touch upstream state. A request that will not be
+     * answered, such as an invalid one, should be released.
+     *
+     * @return how to forward the request upstream, or null if there is nothing to send
+     */
+    protected abstract Forward decodeDnsRequest(DevicePacket packet);
 }
@@ -0,0 +1,283 @@
+package com.carrotproxy.dns.provider;
+
+import android.system.OsConstants;
+import com.carrotproxy.dns.server.AbstractDnsServer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Daedalus Project
+ *
+ * @author iTX Technologies
+ * @link https://itxtech.org
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ */
+class TcpConnection {
+    static final int CONNECT_TIMEOUT = 5000;
+    static final int QUERY_TIMEOUT = 10000;
+    static final int IDLE_TIMEOUT = 30000;
+    static final int MAX_QUERIES = 64;
+
+    interface Listener {
+        void onResponse(TcpConnection connection, Query query, byte[] response);
+
+        void onClosed(TcpConnection connection, ArrayList<Query> unanswered);
+    }
+
+    /**
+     * A query waiting for its response, matched by the ID rewritten for this connection.
+     */
+    static class Query {
+        final DevicePacket packet;
+        final byte[] data;
+        final int originalId;
+        final long time;
+        boolean retried = false;
+
+        Query(DevicePacket packet, byte[] data) {
+            this.packet = packet;
+            this.data = data;
+            this.originalId = ((data[0] & 0xFF) << 8) | (data[1] & 0xFF);
+            this.time = System.currentTimeMillis();
+        }
+    }
+
+    final InetSocketAddress address;
+    final AbstractDnsServer server;
+    final SocketChannel channel;
+    private final Listener listener;
+    private final LinkedHashMap<Integer, Query> queries = new LinkedHashMap<>();
+    final ArrayDeque<ByteBuffer> writeQueue = new ArrayDeque<>();
+    final ByteBuffer readBuffer;
+    EventLoop.Registration registration;
+    private int nextId = 0;
+    private final long created = System.currentTimeMillis();
+    private long lastActive = created;
+    private boolean connecting;
+    private boolean closed = false;
+
+    TcpConnection(InetSocketAddress address, AbstractDnsServer server, SocketChannel channel, Listener listener) {
+        this(address, server, channel, listener, 2 + 65535);
+    }
+
+    /**
+     * @param channel a non-blocking channel, either connected or with a connect in progress
+     */
+    TcpConnection(InetSocketAddress address, AbstractDnsServer server, SocketChannel channel, Listener listener, int bufferSize) {
+        this.address = address;
+        this.server = server;
+        this.channel = channel;
+        this.listener = listener;
+        this.readBuffer = ByteBuffer.allocate(bufferSize);
+        this.connecting = channel.isConnectionPending();
+    }
+
+    int pendingCount() {
+        return queries.size();
+    }
+
+    boolean isFull() {
+        return queries.size() >= MAX_QUERIES;
+    }
+
+    /**
+     * Pipelines a query on this connection. The DNS ID is rewritten so that queries from
+     * different clients sharing an ID can be told apart in out-of-order responses.
+     */
+    void send(Query query) throws IOException {
+        int id;
+        do {
+            id = nextId;
+            nextId = (nextId + 1) & 0xFFFF;
+        } while (queries.containsKey(id));
+        queries.put(id, query);
+        lastActive = System.currentTimeMillis();
+
+        ByteBuffer frame = ByteBuffer.allocate(2 + query.data.length);
+        frame.putShort((short) query.data.length);
+        frame.put(query.data);
+        frame.put(2, (byte) (id >> 8));
+        frame.put(3, (byte) id);
+        frame.flip();
+        writeQueue.add(frame);
+        if (connecting) {
+            updateEvents();
+        } else {
+            flush();
+        }
+    }
+
+    void handleEvents(int revents) {
+        handleEvents((revents & OsConstants.POLLOUT) != 0,
+                (revents & (OsConstants.POLLIN | OsConstants.POLLHUP | OsConstants.POLLERR)) != 0);
+    }
+
+    /**
+     * @param writable whether the socket is writable, which is also how a pending connect ends
+     * @param readable whether the socket has data, was hung up or has an error pending
+     */
+    void handleEvents(boolean writable, boolean readable) {
+        try {
+            if (connecting) {
+                // Completion and failure of a pending connect are both reported as writable
+                if (!channel.finishConnect()) {
+                    return;
+                }
+                connecting = false;
+                lastActive = System.currentTimeMillis();
+                flush();
+                return;
+            }
+            if (writable) {
+                flush();
+            }
+            if (readable) {
+                read();
+            }
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    void flush() throws IOException {
+        while (!writeQueue.isEmpty()) {
+            ByteBuffer frame = writeQueue.peek();
+            channel.write(frame);
+            if (frame.hasRemaining()) {
+                break;
+            }
+            writeQueue.poll();
+        }
+        updateEvents();
+    }
+
+    boolean wantsWrite() {
+        return !writeQueue.isEmpty();
+    }
+
+    boolean isConnecting() {
+        return connecting;
+    }
+
+    /**
+     * @return whether the connection is still being set up, which has to finish within
+     * {@link #CONNECT_TIMEOUT} of its creation
+     */
+    boolean isEstablishing() {
+        return connecting;
+    }
+
+    void updateEvents() {
+        if (registration == null) {
+            return;
+        }
+        if (connecting) {
+            registration.setEvents(OsConstants.POLLOUT);
+        } else {
+            registration.setEvents(wantsWrite() ? OsConstants.POLLIN | OsConstants.POLLOUT : OsConstants.POLLIN);
+        }
+    }
+
+    /**
+     * Reads response bytes from the connection into dst.
+     *
+     * @return the number of bytes read, or -1 at end of stream
+     */
+    int fill(ByteBuffer dst) throws IOException {
+        return channel.read(dst);
+    }
+
+    private void read() throws IOException {
+        int read;
+        while ((read = fill(readBuffer)) > 0) {
+            lastActive = System.currentTimeMillis();
+            readBuffer.flip();
+            while (readBuffer.remaining() >= 2) {
+                int length = readBuffer.getShort(readBuffer.position()) & 0xFFFF;
+                if (readBuffer.remaining() < 2 + length) {
+                    break;
+                }
+                readBuffer.position(readBuffer.position() + 2);
+                byte[] response = new byte[length];
+                readBuffer.get(response);
+                handleResponse(response);
+            }
+            readBuffer.compact();
+        }
+        if (read < 0) {
+            close();
+        }
+    }
+
+    private void handleResponse(byte[] response) {
+        if (response.length < 2) {
+            return;
+        }
+        Query query = queries.remove(((response[0] & 0xFF) << 8) | (response[1] & 0xFF));
+        if (query == null) {
+            return;
+        }
+        response[0] = (byte) (query.originalId >> 8);
+        response[1] = (byte) query.originalId;
+        listener.onResponse(this, query, response);
+    }
+
+    /**
+     * Drops queries that have waited too long.
+     *
+     * @return whether the connection should be closed, because it has been idle for long
+     * enough or because the connect did not complete in time
+     */
+    boolean expire(long now) {
+        if (isEstablishing()) {
+            return now - created > CONNECT_TIMEOUT;
+        }
+        Iterator<Query> iterator = queries.values().iterator();
+        while (iterator.hasNext() && now - iterator.next().time > QUERY_TIMEOUT) {
+            iterator.remove();
+        }
+        return queries.isEmpty() && now - lastActive > IDLE_TIMEOUT;
+    }
+
+    /**
+     * @return the time at which {@link #expire(long)} has something to do
+     */
+    long nextDeadline() {
+        if (isEstablishing()) {
+            return created + CONNECT_TIMEOUT;
+        }
+        if (!queries.isEmpty()) {
+            return queries.values().iterator().next().time + QUERY_TIMEOUT;
+        }
+        return lastActive + IDLE_TIMEOUT;
+    }
+
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (registration != null) {
+            registration.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        ArrayList<Query> unanswered = new ArrayList<>(queries.values());
+        queries.clear();
+        writeQueue.clear();
+        listener.onClosed(this, unanswered);
+    }
+}
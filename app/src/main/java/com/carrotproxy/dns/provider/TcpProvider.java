@@ -2,24 +2,18 @@ package com.carrotproxy.dns.provider;
 
 import android.os.ParcelFileDescriptor;
 import android.system.ErrnoException;
-import android.system.Os;
 import android.system.OsConstants;
-import android.system.StructPollfd;
 import android.util.Log;
-import androidx.annotation.NonNull;
 import com.carrotproxy.dns.service.DaedalusVpnService;
 import com.carrotproxy.dns.util.Logger;
 import com.carrotproxy.dns.server.AbstractDnsServer;
-import org.pcap4j.packet.IpPacket;
 
-import java.io.*;
+import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.InetSocketAddress;
-import java.net.Socket;
-import java.net.SocketAddress;
 import java.nio.channels.SocketChannel;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.HashMap;
 
 /**
  * Daedalus Project
@@ -35,87 +29,40 @@ import java.util.LinkedList;
 public class TcpProvider extends UdpProvider {
 
     private static final String TAG = "TcpProvider";
+    private static final int MAX_CONNECTIONS_PER_SERVER = 2;
 
-    protected final TcpProvider.WospList dnsIn = new TcpProvider.WospList();
-
-    public TcpProvider(ParcelFileDescriptor descriptor, DaedalusVpnService service) {
-        super(descriptor, service);
-    }
-
-    public void process() {
-        try {
-            FileDescriptor[] pipes = Os.pipe();
-            mInterruptFd = pipes[0];
-            mBlockFd = pipes[1];
-            FileInputStream inputStream = new FileInputStream(descriptor.getFileDescriptor());
-            FileOutputStream outputStream = new FileOutputStream(descriptor.getFileDescriptor());
-
-            byte[] packet = new byte[32767];
-            while (running) {
-                StructPollfd deviceFd = new StructPollfd();
-                deviceFd.fd = inputStream.getFD();
-                deviceFd.events = (short) OsConstants.POLLIN;
-                StructPollfd blockFd = new StructPollfd();
-                blockFd.fd = mBlockFd;
-                blockFd.events = (short) (OsConstants.POLLHUP | OsConstants.POLLERR);
-
-                if (!deviceWrites.isEmpty())
-                    deviceFd.events |= (short) OsConstants.POLLOUT;
-
-                StructPollfd[] polls = new StructPollfd[2 + dnsIn.size()];
-                polls[0] = deviceFd;
-                polls[1] = blockFd;
-                {
-                    int i = -1;
-                    for (TcpProvider.WaitingOnSocketPacket wosp : dnsIn) {
-                        i++;
-                        StructPollfd pollFd = polls[2 + i] = new StructPollfd();
-                        pollFd.fd = ParcelFileDescriptor.fromSocket(wosp.socket).getFileDescriptor();
-                        pollFd.events = (short) OsConstants.POLLIN;
-                    }
-                }
-
-                Log.d(TAG, "doOne: Polling " + polls.length + " file descriptors");
-                Os.poll(polls, -1);
-                if (blockFd.revents != 0) {
-                    Log.i(TAG, "Told to stop VPN");
-                    running = false;
-                    return;
-                }
+    private final HashMap<InetSocketAddress, ArrayList<TcpConnection>> connections = new HashMap<>();
+    final TcpConnection.Listener listener = new TcpConnection.Listener() {
+        @Override
+        public void onResponse(TcpConnection connection, TcpConnection.Query query, byte[] response) {
+            handleUpstreamResponse(query.packet, response);
+        }
 
-                // Need to do this before reading from the device, otherwise a new insertion there could
-                // invalidate one of the sockets we want to read from either due to size or time out
-                // constraints
-                {
-                    int i = -1;
-                    Iterator<TcpProvider.WaitingOnSocketPacket> iter = dnsIn.iterator();
-                    while (iter.hasNext()) {
-                        i++;
-                        TcpProvider.WaitingOnSocketPacket wosp = iter.next();
-                        if ((polls[i + 2].revents & OsConstants.POLLIN) != 0) {
-                            Log.d(TAG, "Read from TCP DNS socket" + wosp.socket);
-                            iter.remove();
-                            handleRawDnsResponse(wosp.packet, wosp.socket);
-                            wosp.socket.close();
-                        }
+        @Override
+        public void onClosed(TcpConnection connection, ArrayList<TcpConnection.Query> unanswered) {
+            ArrayList<TcpConnection> pool = connections.get(connection.address);
+            if (pool == null || !pool.remove(connection)) {
+                return;
+            }
+            // The server may close a connection at any time (RFC 7766 6.2.3), retry once on a new one
+            for (TcpConnection.Query query : unanswered) {
+                if (!query.retried) {
+                    query.retried = true;
+                    try {
+                        sendQuery(connection.address, connection.server, query);
+                    } catch (DaedalusVpnService.VpnNetworkException e) {
+                        Logger.logException(e);
                     }
                 }
-                if ((deviceFd.revents & OsConstants.POLLOUT) != 0) {
-                    Log.d(TAG, "Write to device");
-                    writeToDevice(outputStream);
-                }
-                if ((deviceFd.revents & OsConstants.POLLIN) != 0) {
-                    Log.d(TAG, "Read from device");
-                    readPacketFromDevice(inputStream, packet);
-                }
-                service.providerLoopCallback();
             }
-        } catch (Exception e) {
-            Logger.logException(e);
         }
+    };
+
+    public TcpProvider(ParcelFileDescriptor descriptor, DaedalusVpnService service) {
+        super(descriptor, service);
     }
 
-    protected byte[] processUdpPacket(DatagramPacket outPacket, IpPacket parsedPacket) {
+    protected byte[] processUdpPacket(DatagramPacket outPacket, DevicePacket parsedPacket) {
         if (parsedPacket == null) {
             return new byte[0];
         }
@@ -123,30 +70,27 @@ public class TcpProvider extends UdpProvider {
     }
 
     @Override
-    protected void forwardPacket(DatagramPacket outPacket, IpPacket parsedPacket, AbstractDnsServer dnsServer) throws DaedalusVpnService.VpnNetworkException {
-        Socket dnsSocket;
+    protected void forwardPacket(DatagramPacket outPacket, DevicePacket parsedPacket, AbstractDnsServer dnsServer) throws DaedalusVpnService.VpnNetworkException {
+        byte[] packet = processUdpPacket(outPacket, parsedPacket);
+        if (packet.length < 12) {
+            // Nothing to pipeline for empty UDP probes
+            return;
+        }
+        sendQuery(new InetSocketAddress(outPacket.getAddress(), dnsServer.getPort()), dnsServer,
+                new TcpConnection.Query(parsedPacket, packet));
+    }
+
+    private void sendQuery(InetSocketAddress address, AbstractDnsServer server, TcpConnection.Query query) throws DaedalusVpnService.VpnNetworkException {
+        expireConnections();
+        TcpConnection connection = null;
         try {
-            // Packets to be sent to the real DNS server will need to be protected from the VPN
-            dnsSocket = SocketChannel.open().socket();
-
-            service.protect(dnsSocket);
-
-            SocketAddress address = new InetSocketAddress(outPacket.getAddress(), dnsServer.getPort());
-            dnsSocket.connect(address, 5000);
-            dnsSocket.setSoTimeout(5000);
-            Logger.info("TcpProvider: Sending DNS query request");
-            DataOutputStream dos = new DataOutputStream(dnsSocket.getOutputStream());
-            byte[] packet = processUdpPacket(outPacket, parsedPacket);
-            dos.writeShort(packet.length);
-            dos.write(packet);
-            dos.flush();
-
-            if (parsedPacket != null) {
-                dnsIn.add(new TcpProvider.WaitingOnSocketPacket(dnsSocket, parsedPacket));
-            } else {
-                dnsSocket.close();
-            }
+            connection = acquireConnection(address, server);
+            Log.d(TAG, "Sending DNS query request to " + address);
+            connection.send(query);
         } catch (IOException e) {
+            if (connection != null) {
+                connection.close();
+            }
             if (e.getCause() instanceof ErrnoException) {
                 ErrnoException errnoExc = (ErrnoException) e.getCause();
                 if ((errnoExc.errno == OsConstants.ENETUNREACH) || (errnoExc.errno == OsConstants.EPERM)) {
@@ -157,70 +101,108 @@ public class TcpProvider extends UdpProvider {
         }
     }
 
-    private void handleRawDnsResponse(IpPacket parsedPacket, Socket dnsSocket) {
-        try {
-            DataInputStream stream = new DataInputStream(dnsSocket.getInputStream());
-            int length = stream.readUnsignedShort();
-            Log.d(TAG, "Reading length: " + length);
-            byte[] data = new byte[length];
-            stream.read(data);
-            dnsSocket.close();
-            handleDnsResponse(parsedPacket, data);
-        } catch (Exception ignored) {
-
+    /**
+     * Returns the least loaded connection to the server, opening another one while all existing
+     * connections have a full pipeline.
+     */
+    private TcpConnection acquireConnection(InetSocketAddress address, AbstractDnsServer server) throws IOException {
+        ArrayList<TcpConnection> pool = connections.get(address);
+        if (pool == null) {
+            pool = new ArrayList<>(MAX_CONNECTIONS_PER_SERVER);
+            connections.put(address, pool);
         }
+        TcpConnection best = null;
+        for (TcpConnection connection : pool) {
+            if (best == null || connection.pendingCount() < best.pendingCount()) {
+                best = connection;
+            }
+        }
+        if (best == null || (best.isFull() && pool.size() < MAX_CONNECTIONS_PER_SERVER)) {
+            best = openConnection(address, server);
+            pool.add(best);
+        }
+        return best;
+    }
+
+    TcpConnection openConnection(InetSocketAddress address, AbstractDnsServer server) throws IOException {
+        return registerConnection(new TcpConnection(address, server, connect(address), listener));
     }
 
     /**
-     * Helper class holding a socket, the packet we are waiting the answer for, and a time
+     * Starts a non-blocking connect, the connection completes it once the socket becomes
+     * writable so a slow server never stalls the provider thread.
      */
-    public static class WaitingOnSocketPacket {
-        final Socket socket;
-        final IpPacket packet;
-        private final long time;
-
-        WaitingOnSocketPacket(Socket socket, IpPacket packet) {
-            this.socket = socket;
-            this.packet = packet;
-            this.time = System.currentTimeMillis();
+    SocketChannel connect(InetSocketAddress address) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            // Packets to be sent to the real DNS server will need to be protected from the VPN
+            service.protect(channel.socket());
+            channel.configureBlocking(false);
+            channel.connect(address);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
         }
+        return channel;
+    }
+
+    TcpConnection registerConnection(TcpConnection connection) {
+        connection.registration = eventLoop.register(ParcelFileDescriptor.fromSocket(connection.channel.socket()),
+                OsConstants.POLLIN, (registration, revents) -> connection.handleEvents(revents));
+        connection.updateEvents();
+        return connection;
+    }
 
-        long ageSeconds() {
-            return (System.currentTimeMillis() - time) / 1000;
+    @Override
+    protected int getPollTimeout() {
+        long deadline = Long.MAX_VALUE;
+        for (ArrayList<TcpConnection> pool : connections.values()) {
+            for (TcpConnection connection : pool) {
+                deadline = Math.min(deadline, connection.nextDeadline());
+            }
+        }
+        if (deadline == Long.MAX_VALUE) {
+            return -1;
         }
+        return (int) Math.max(0, Math.min(deadline - System.currentTimeMillis() + 1, TcpConnection.IDLE_TIMEOUT));
     }
 
-    /**
-     * Queue of WaitingOnSocketPacket, bound on time and space.
-     */
-    public static class WospList implements Iterable<TcpProvider.WaitingOnSocketPacket> {
-        private final LinkedList<TcpProvider.WaitingOnSocketPacket> list = new LinkedList<>();
-
-        void add(TcpProvider.WaitingOnSocketPacket wosp) {
-            try {
-                if (list.size() > 1024) {
-                    Log.d(TAG, "Dropping socket due to space constraints: " + list.element().socket);
-                    list.element().socket.close();
-                    list.remove();
-                }
-                while (!list.isEmpty() && list.element().ageSeconds() > 10) {
-                    Log.d(TAG, "Timeout on socket " + list.element().socket);
-                    list.element().socket.close();
-                    list.remove();
+    @Override
+    protected void handlePendingResponses() {
+        expireConnections();
+    }
+
+    private void expireConnections() {
+        long now = System.currentTimeMillis();
+        ArrayList<TcpConnection> idle = null;
+        for (ArrayList<TcpConnection> pool : connections.values()) {
+            for (TcpConnection connection : pool) {
+                if (connection.expire(now)) {
+                    if (idle == null) {
+                        idle = new ArrayList<>();
+                    }
+                    idle.add(connection);
                 }
-                list.add(wosp);
-            } catch (Exception ignored) {
             }
         }
-
-        @NonNull
-        public Iterator<TcpProvider.WaitingOnSocketPacket> iterator() {
-            return list.iterator();
+        if (idle != null) {
+            for (TcpConnection connection : idle) {
+                Log.d(TAG, "Closing idle or unconnected connection to " + connection.address);
+                connection.close();
+            }
         }
+    }
 
-        int size() {
-            return list.size();
+    @Override
+    protected void closeUpstreams() {
+        super.closeUpstreams();
+        ArrayList<TcpConnection> all = new ArrayList<>();
+        for (ArrayList<TcpConnection> pool : connections.values()) {
+            all.addAll(pool);
+        }
+        connections.clear();
+        for (TcpConnection connection : all) {
+            connection.close();
         }
-
     }
 }
@@ -0,0 +1,192 @@
+package com.carrotproxy.dns.provider;
+
+import com.carrotproxy.dns.server.AbstractDnsServer;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Daedalus Project
+ *
+ * @author iTX Technologies
+ * @link https://itxtech.org
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ */
+class TlsConnection extends TcpConnection {
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SSLEngine engine;
+    // Both buffers are kept in fill mode between calls
+    private final ByteBuffer netIn;
+    private final ByteBuffer netOut;
+    private boolean handshaking = true;
+    // Whether the first handshake has finished, later ones are key updates
+    private boolean established = false;
+
+    TlsConnection(InetSocketAddress address, AbstractDnsServer server, SocketChannel channel, Listener listener,
+                  SSLEngine engine) throws IOException {
+        super(address, server, channel, listener, 2 + 65535 + engine.getSession().getApplicationBufferSize());
+        this.engine = engine;
+        netIn = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+        netOut = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+        engine.beginHandshake();
+    }
+
+    @Override
+    void flush() throws IOException {
+        if (handshaking && !handshake()) {
+            updateEvents();
+            return;
+        }
+        while (!writeQueue.isEmpty() && writeNet()) {
+            ByteBuffer frame = writeQueue.peek();
+            SSLEngineResult result = engine.wrap(frame, netOut);
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                throw new EOFException("TLS connection closed");
+            }
+            if (!frame.hasRemaining()) {
+                writeQueue.poll();
+            }
+        }
+        writeNet();
+        updateEvents();
+    }
+
+    /**
+     * A server that accepts the connection but never completes the handshake is given up on
+     * like one that never accepts it.
+     */
+    @Override
+    boolean isEstablishing() {
+        return super.isEstablishing() || !established;
+    }
+
+    @Override
+    boolean wantsWrite() {
+        return (!handshaking && super.wantsWrite()) || netOut.position() > 0 ||
+                (handshaking && engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP);
+    }
+
+    @Override
+    int fill(ByteBuffer dst) throws IOException {
+        if (handshaking) {
+            if (!handshake()) {
+                updateEvents();
+                return 0;
+            }
+            // Send the queries that were queued while the handshake was running
+            flush();
+        }
+        int read = channel.read(netIn);
+        int produced = 0;
+        netIn.flip();
+        while (netIn.hasRemaining()) {
+            SSLEngineResult result = engine.unwrap(netIn, dst);
+            produced += result.bytesProduced();
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                read = -1;
+                break;
+            }
+            if (result.getStatus() != SSLEngineResult.Status.OK ||
+                    (result.bytesConsumed() == 0 && result.bytesProduced() == 0)) {
+                break;
+            }
+            if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                runTasks();
+            }
+        }
+        netIn.compact();
+        SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+        if (status != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING &&
+                status != SSLEngineResult.HandshakeStatus.FINISHED) {
+            // Renegotiation or a key update, driven by the next call
+            handshaking = true;
+            updateEvents();
+        }
+        if (produced > 0) {
+            return produced;
+        }
+        return read < 0 ? -1 : 0;
+    }
+
+    /**
+     * Advances the handshake as far as possible without blocking. Every handshake record is
+     * sent as soon as it is wrapped, and nothing is left in netOut while waiting for the
+     * server, so POLLOUT is only armed when the socket is actually full.
+     *
+     * @return whether the handshake has finished
+     */
+    private boolean handshake() throws IOException {
+        while (true) {
+            SSLEngineResult result;
+            switch (engine.getHandshakeStatus()) {
+                case NEED_TASK:
+                    runTasks();
+                    break;
+                case NEED_WRAP:
+                    result = engine.wrap(EMPTY, netOut);
+                    if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                        throw new EOFException("TLS handshake failed");
+                    }
+                    if (!writeNet()) {
+                        return false;
+                    }
+                    break;
+                case NEED_UNWRAP:
+                    if (!writeNet()) {
+                        return false;
+                    }
+                    netIn.flip();
+                    result = engine.unwrap(netIn, readBuffer);
+                    netIn.compact();
+                    if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                        throw new EOFException("TLS handshake failed");
+                    }
+                    if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                        int read = channel.read(netIn);
+                        if (read < 0) {
+                            throw new EOFException("TLS handshake failed");
+                        }
+                        if (read == 0) {
+                            return false;
+                        }
+                    }
+                    break;
+                default:
+                    handshaking = false;
+                    established = true;
+                    return true;
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    /**
+     * @return whether all encrypted bytes have been written to the socket
+     */
+    private boolean writeNet() throws IOException {
+        if (netOut.position() == 0) {
+            return true;
+        }
+        netOut.flip();
+        channel.write(netOut);
+        boolean drained = !netOut.hasRemaining();
+        netOut.compact();
+        return drained;
+    }
+}
@@ -1,15 +1,20 @@
 package com.carrotproxy.dns.provider;
 
+import android.os.Build;
 import android.os.ParcelFileDescriptor;
 import com.carrotproxy.dns.service.DaedalusVpnService;
-import com.carrotproxy.dns.util.Logger;
 import com.carrotproxy.dns.server.AbstractDnsServer;
-import org.pcap4j.packet.IpPacket;
 
+import javax.net.ssl.SNIHostName;
 import javax.net.ssl.SSLContext;
-import java.io.DataOutputStream;
-import java.net.DatagramPacket;
-import java.net.Socket;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collections;
 
 /**
  * Daedalus Project
@@ -22,36 +27,80 @@ import java.net.Socket;
  * the Free Software Foundation, either version 3 of the License, or
  * (at your option) any later version.
  */
-public class TlsProvider extends TcpProvider{
+public class TlsProvider extends TcpProvider {
+    private SSLContext context = null;
+
     public TlsProvider(ParcelFileDescriptor descriptor, DaedalusVpnService service) {
         super(descriptor, service);
     }
 
     @Override
-    protected void forwardPacket(DatagramPacket outPacket, IpPacket parsedPacket, AbstractDnsServer dnsServer) {
-        Socket dnsSocket;
+    TcpConnection openConnection(InetSocketAddress address, AbstractDnsServer server) throws IOException {
+        SSLEngine engine = createEngine(server, address.getPort());
+        SocketChannel channel = connect(address);
         try {
-            SSLContext context = SSLContext.getInstance("TLSv1.2");
-            context.init(null, null, null);
-            dnsSocket = context.getSocketFactory().createSocket(outPacket.getAddress(), dnsServer.getPort());
-            //Create TLS v1.2 socket
-            //TODO: SNI
-
-            service.protect(dnsSocket);
-
-            DataOutputStream dos = new DataOutputStream(dnsSocket.getOutputStream());
-            byte[] packet = processUdpPacket(outPacket, parsedPacket);
-            dos.writeShort(packet.length);
-            dos.write(packet);
-            dos.flush();
-
-            if (parsedPacket != null) {
-                dnsIn.add(new WaitingOnSocketPacket(dnsSocket, parsedPacket));
-            } else {
-                dnsSocket.close();
+            return registerConnection(new TlsConnection(address, server, channel, listener, engine));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Creates a client engine from the provider-wide context. Engines created for the same
+     * host and port share the context's session cache, so reconnects resume the session
+     * instead of doing a full handshake.
+     */
+    private SSLEngine createEngine(AbstractDnsServer server, int port) throws IOException {
+        if (context == null) {
+            try {
+                context = SSLContext.getInstance("TLS");
+                context.init(null, null, null);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Cannot initialize TLS", e);
+            }
+        }
+        String host = server.getAddress();
+        SSLEngine engine = context.createSSLEngine(host, port);
+        engine.setUseClientMode(true);
+
+        ArrayList<String> protocols = new ArrayList<>();
+        for (String protocol : engine.getSupportedProtocols()) {
+            if (protocol.equals("TLSv1.3") || protocol.equals("TLSv1.2")) {
+                protocols.add(protocol);
+            }
+        }
+        if (!protocols.isEmpty()) {
+            engine.setEnabledProtocols(protocols.toArray(new String[0]));
+        }
+
+        if (isHostName(host) && Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            setServerName(engine, host);
+        }
+        return engine;
+    }
+
+    /**
+     * Sends the host name as SNI and makes the handshake fail unless the certificate is issued
+     * for it, the trust manager alone accepts any trusted certificate.
+     */
+    static void setServerName(SSLEngine engine, String host) {
+        SSLParameters parameters = engine.getSSLParameters();
+        parameters.setServerNames(Collections.singletonList(new SNIHostName(host)));
+        parameters.setEndpointIdentificationAlgorithm("HTTPS");
+        engine.setSSLParameters(parameters);
+    }
+
+    private static boolean isHostName(String address) {
+        if (address.indexOf(':') >= 0) {//IPv6
+            return false;
+        }
+        for (int i = 0; i < address.length(); i++) {
+            char c = address.charAt(i);
+            if (c != '.' && (c < '0' || c > '9')) {
+                return true;
             }
-        } catch (Exception e) {
-            Logger.logException(e);
         }
+        return false;
     }
 }
@@ -1,29 +1,24 @@
 package com.carrotproxy.dns.provider;
 
 import android.os.ParcelFileDescriptor;
-import android.system.Os;
 import android.system.OsConstants;
-import android.system.StructPollfd;
 import android.util.Log;
-import androidx.annotation.NonNull;
 import com.carrotproxy.dns.Daedalus;
 import com.carrotproxy.dns.service.DaedalusVpnService;
 import com.carrotproxy.dns.util.Logger;
 import com.carrotproxy.dns.server.AbstractDnsServer;
 import org.minidns.dnsmessage.DnsMessage;
-import org.pcap4j.packet.IpPacket;
-import org.pcap4j.packet.IpSelector;
-import org.pcap4j.packet.UdpPacket;
 
-import java.io.FileDescriptor;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
 
 /**
  * Daedalus Project
@@ -39,144 +34,129 @@ import java.util.LinkedList;
 public class UdpProvider extends Provider {
     private static final String TAG = "UdpProvider";
 
-    private final WospList dnsIn = new WospList();
+    static final int UPSTREAM_SOCKETS = 4;
+    static final int ROTATE_AFTER_QUERIES = 512;
+
+    private final SecureRandom random = new SecureRandom();
+    private final UpstreamSocket[] upstreams = new UpstreamSocket[UPSTREAM_SOCKETS];
+    private final PendingQueries pendingQueries = new PendingQueries(random);
+    private final byte[] receiveBuffer = new byte[65535];
+    private final DatagramPacket receivePacket = new DatagramPacket(receiveBuffer, receiveBuffer.length);
 
     public UdpProvider(ParcelFileDescriptor descriptor, DaedalusVpnService service) {
         super(descriptor, service);
     }
 
-    public void process() {
+    protected void forwardPacket(DatagramPacket outPacket, DevicePacket parsedPacket, AbstractDnsServer dnsServer) throws DaedalusVpnService.VpnNetworkException {
+        byte[] data = outPacket.getData();
+        int offset = outPacket.getOffset();
+        boolean tracked = parsedPacket != null && outPacket.getLength() >= 12;
+        int originalId = 0;
+        int id = 0;
         try {
-            FileDescriptor[] pipes = Os.pipe();
-            mInterruptFd = pipes[0];
-            mBlockFd = pipes[1];
-            FileInputStream inputStream = new FileInputStream(descriptor.getFileDescriptor());
-            FileOutputStream outputStream = new FileOutputStream(descriptor.getFileDescriptor());
-
-            byte[] packet = new byte[32767];
-            while (running) {
-                StructPollfd deviceFd = new StructPollfd();
-                deviceFd.fd = inputStream.getFD();
-                deviceFd.events = (short) OsConstants.POLLIN;
-                StructPollfd blockFd = new StructPollfd();
-                blockFd.fd = mBlockFd;
-                blockFd.events = (short) (OsConstants.POLLHUP | OsConstants.POLLERR);
-
-                if (!deviceWrites.isEmpty())
-                    deviceFd.events |= (short) OsConstants.POLLOUT;
-
-                StructPollfd[] polls = new StructPollfd[2 + dnsIn.size()];
-                polls[0] = deviceFd;
-                polls[1] = blockFd;
-                {
-                    int i = -1;
-                    for (WaitingOnSocketPacket wosp : dnsIn) {
-                        i++;
-                        StructPollfd pollFd = polls[2 + i] = new StructPollfd();
-                        pollFd.fd = ParcelFileDescriptor.fromDatagramSocket(wosp.socket).getFileDescriptor();
-                        pollFd.events = (short) OsConstants.POLLIN;
-                    }
-                }
+            UpstreamSocket upstream = pickUpstream();
+            if (tracked) {
+                originalId = ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+                id = pendingQueries.nextId();
+                data[offset] = (byte) (id >> 8);
+                data[offset + 1] = (byte) id;
+            }
 
-                Log.d(TAG, "doOne: Polling " + polls.length + " file descriptors");
-                Os.poll(polls, -1);
-                if (blockFd.revents != 0) {
-                    Log.i(TAG, "Told to stop VPN");
-                    running = false;
-                    return;
-                }
+            upstream.socket.send(outPacket);
 
-                // Need to do this before reading from the device, otherwise a new insertion there could
-                // invalidate one of the sockets we want to read from either due to size or time out
-                // constraints
-                {
-                    int i = -1;
-                    Iterator<WaitingOnSocketPacket> iter = dnsIn.iterator();
-                    while (iter.hasNext()) {
-                        i++;
-                        WaitingOnSocketPacket wosp = iter.next();
-                        if ((polls[i + 2].revents & OsConstants.POLLIN) != 0) {
-                            Log.d(TAG, "Read from UDP DNS socket" + wosp.socket);
-                            iter.remove();
-                            handleRawDnsResponse(wosp.packet, wosp.socket);
-                            wosp.socket.close();
-                        }
-                    }
-                }
-                if ((deviceFd.revents & OsConstants.POLLOUT) != 0) {
-                    Log.d(TAG, "Write to device");
-                    writeToDevice(outputStream);
-                }
-                if ((deviceFd.revents & OsConstants.POLLIN) != 0) {
-                    Log.d(TAG, "Read from device");
-                    readPacketFromDevice(inputStream, packet);
-                }
-                service.providerLoopCallback();
+            if (tracked) {
+                pendingQueries.add(id, new PendingQuery(upstream, parsedPacket, originalId,
+                        outPacket.getAddress(), outPacket.getPort()));
             }
-        } catch (Exception e) {
-            Logger.logException(e);
+        } catch (IOException e) {
+            if (tracked) {
+                data[offset] = (byte) (originalId >> 8);
+                data[offset + 1] = (byte) originalId;
+            }
+            if (parsedPacket != null) {
+                handleDnsResponse(parsedPacket, data);
+            }
+            Logger.warning("DNSProvider: Could not send packet to upstream, forwarding packet directly");
         }
     }
 
-    protected void forwardPacket(DatagramPacket outPacket, IpPacket parsedPacket, AbstractDnsServer dnsServer) throws DaedalusVpnService.VpnNetworkException {
-        DatagramSocket dnsSocket;
-        try {
+    /**
+     * Picks a random socket of the pool, replacing sockets that have served enough queries so
+     * the source port keeps changing.
+     */
+    private UpstreamSocket pickUpstream() throws IOException {
+        int slot = random.nextInt(UPSTREAM_SOCKETS);
+        UpstreamSocket upstream = upstreams[slot];
+        if (upstream != null && upstream.queries >= ROTATE_AFTER_QUERIES) {
+            pendingQueries.retire(upstream);
+            upstream = null;
+        }
+        if (upstream == null) {
             // Packets to be sent to the real DNS server will need to be protected from the VPN
-            dnsSocket = new DatagramSocket();
-
-            service.protect(dnsSocket);
-
-            dnsSocket.send(outPacket);
-
-            if (parsedPacket != null) {
-                dnsIn.add(new WaitingOnSocketPacket(dnsSocket, parsedPacket));
-            } else {
-                dnsSocket.close();
-            }
-        } catch (IOException e) {
-            handleDnsResponse(parsedPacket, outPacket.getData());
-            Logger.warning("DNSProvider: Could not send packet to upstream, forwarding packet directly");
+            DatagramSocket socket = new DatagramSocket();
+            service.protect(socket);
+            upstream = upstreams[slot] = new UpstreamSocket(socket);
+            UpstreamSocket registered = upstream;
+            upstream.registration = eventLoop.register(ParcelFileDescriptor.fromDatagramSocket(socket),
+                    OsConstants.POLLIN, (registration, revents) -> handleRawDnsResponse(registered));
         }
+        upstream.queries++;
+        return upstream;
     }
 
-    private void handleRawDnsResponse(IpPacket parsedPacket, DatagramSocket dnsSocket) {
+    private void handleRawDnsResponse(UpstreamSocket upstream) {
+        int length;
         try {
-            byte[] datagramData = new byte[1024];
-            DatagramPacket replyPacket = new DatagramPacket(datagramData, datagramData.length);
-            dnsSocket.receive(replyPacket);
-            handleDnsResponse(parsedPacket, datagramData);
-        } catch (Exception e) {
+            receivePacket.setLength(receiveBuffer.length);
+            upstream.socket.receive(receivePacket);
+            length = receivePacket.getLength();
+        } catch (IOException e) {
             Logger.logException(e);
+            return;
         }
+        if (length < 12) {
+            return;
+        }
+        int id = ((receiveBuffer[0] & 0xFF) << 8) | (receiveBuffer[1] & 0xFF);
+        PendingQuery query = pendingQueries.get(id);
+        if (query == null || query.upstream != upstream || query.port != receivePacket.getPort() ||
+                !query.address.equals(receivePacket.getAddress())) {
+            Log.d(TAG, "Dropping unexpected response with ID " + id);
+            return;
+        }
+        pendingQueries.remove(id);
+        byte[] response = Arrays.copyOf(receiveBuffer, length);
+        response[0] = (byte) (query.originalId >> 8);
+        response[1] = (byte) query.originalId;
+        handleUpstreamResponse(query.packet, response);
+    }
+
+    @Override
+    protected void closeUpstreams() {
+        for (int i = 0; i < UPSTREAM_SOCKETS; i++) {
+            if (upstreams[i] != null) {
+                upstreams[i].close();
+                upstreams[i] = null;
+            }
+        }
+        //Retired sockets are no longer in the pool, only the table still knows them
+        pendingQueries.clear();
     }
 
     /**
-     * Handles a DNS request, by either blocking it or forwarding it to the remote location.
+     * Handles a DNS request, by either blocking it or preparing to forward it to the remote location.
      *
-     * @param packetData The packet data to read
-     * @throws DaedalusVpnService.VpnNetworkException If some network error occurred
+     * @param parsedPacket The packet read from the device
+     * @return the forwarding of the request, or null if it was answered or dropped
      */
     @Override
-    protected void handleDnsRequest(byte[] packetData) throws DaedalusVpnService.VpnNetworkException {
-        IpPacket parsedPacket;
+    protected Forward decodeDnsRequest(DevicePacket parsedPacket) {
+        InetAddress destAddr;
         try {
-            parsedPacket = (IpPacket) IpSelector.newPacket(packetData, 0, packetData.length);
-        } catch (Exception e) {
-            Log.i(TAG, "handleDnsRequest: Discarding invalid IP packet", e);
-            return;
-        }
-
-        if (!(parsedPacket.getPayload() instanceof UdpPacket)) {
-            try {
-                Logger.debug("handleDnsRequest: Discarding unknown packet type " + parsedPacket.getPayload());
-            } catch (Exception ignored) {
-            }
-            return;
-        }
-
-        InetAddress destAddr = parsedPacket.getHeader().getDstAddr();
-        if (destAddr == null) {
-            return;
+            destAddr = parsedPacket.getDestinationAddress();
+        } catch (UnknownHostException e) {
+            parsedPacket.release();
+            return null;
         }
         AbstractDnsServer dnsServer;
         try {
@@ -185,23 +165,22 @@ public class UdpProvider extends Provider {
         } catch (Exception e) {
             Logger.logException(e);
             Logger.error("handleDnsRequest: DNS server alias query failed for " + destAddr.getHostAddress());
-            return;
+            parsedPacket.release();
+            return null;
         }
 
-        UdpPacket parsedUdp = (UdpPacket) parsedPacket.getPayload();
-
-        if (parsedUdp.getPayload() == null) {
-            Log.i(TAG, "handleDnsRequest: Sending UDP packet without payload: " + parsedUdp);
+        if (parsedPacket.getPayloadLength() == 0) {
+            Log.i(TAG, "handleDnsRequest: Sending UDP packet without payload to " + destAddr);
+            parsedPacket.release();
 
             // Let's be nice to Firefox. Firefox uses an empty UDP packet to
             // the gateway to reduce the RTT. For further details, please see
             // https://bugzilla.mozilla.org/show_bug.cgi?id=888268
             DatagramPacket outPacket = new DatagramPacket(new byte[0], 0, 0, destAddr, dnsServer.getPort());
-            forwardPacket(outPacket, null, dnsServer);
-            return;
+            return () -> forwardPacket(outPacket, null, dnsServer);
         }
 
-        byte[] dnsRawData = (parsedUdp).getPayload().getRawData();
+        byte[] dnsRawData = parsedPacket.takePayload();
         DnsMessage dnsMsg;
         try {
             dnsMsg = new DnsMessage(dnsRawData);
@@ -210,30 +189,61 @@ public class UdpProvider extends Provider {
             }
         } catch (IOException e) {
             Log.i(TAG, "handleDnsRequest: Discarding non-DNS or invalid packet", e);
-            return;
+            parsedPacket.release();
+            return null;
         }
         if (dnsMsg.getQuestion() == null) {
             Logger.debug("handleDnsRequest: Discarding DNS packet with no query " + dnsMsg);
-            return;
+            parsedPacket.release();
+            return null;
         }
 
-        if (!resolve(parsedPacket, dnsMsg)) {
-            DatagramPacket outPacket = new DatagramPacket(dnsRawData, 0, dnsRawData.length, destAddr, dnsServer.getPort());
-            forwardPacket(outPacket, parsedPacket, dnsServer);
+        if (resolve(parsedPacket, dnsMsg, dnsRawData)) {
+            return null;
         }
+        DatagramPacket outPacket = new DatagramPacket(dnsRawData, 0, dnsRawData.length, destAddr, dnsServer.getPort());
+        return () -> forwardPacket(outPacket, parsedPacket, dnsServer);
     }
 
     /**
-     * Helper class holding a socket, the packet we are waiting the answer for, and a time
+     * A long-lived protected socket shared by many queries.
      */
-    private static class WaitingOnSocketPacket {
+    private static class UpstreamSocket {
         final DatagramSocket socket;
-        final IpPacket packet;
-        private final long time;
+        EventLoop.Registration registration;
+        int queries = 0;
+        int inFlight = 0;
+        boolean retired = false;
 
-        WaitingOnSocketPacket(DatagramSocket socket, IpPacket packet) {
+        UpstreamSocket(DatagramSocket socket) {
             this.socket = socket;
+        }
+
+        void close() {
+            if (registration != null) {
+                registration.cancel();
+            }
+            socket.close();
+        }
+    }
+
+    /**
+     * Helper class holding the packet we are waiting the answer for, where it was sent and a time
+     */
+    private static class PendingQuery {
+        final UpstreamSocket upstream;
+        final DevicePacket packet;
+        final int originalId;
+        final InetAddress address;
+        final int port;
+        private final long time;
+
+        PendingQuery(UpstreamSocket upstream, DevicePacket packet, int originalId, InetAddress address, int port) {
+            this.upstream = upstream;
             this.packet = packet;
+            this.originalId = originalId;
+            this.address = address;
+            this.port = port;
             this.time = System.currentTimeMillis();
         }
 
@@ -243,33 +253,83 @@ public class UdpProvider extends Provider {
     }
 
     /**
-     * Queue of WaitingOnSocketPacket, bound on time and space.
+     * Table of in-flight queries keyed by the random ID sent upstream, bound on time and space.
+     * It also keeps the retired sockets still waiting for answers, and closes each one once its
+     * last query is done.
      */
-    private static class WospList implements Iterable<WaitingOnSocketPacket> {
-        private final LinkedList<WaitingOnSocketPacket> list = new LinkedList<>();
-
-        void add(WaitingOnSocketPacket wosp) {
-            if (list.size() > 1024) {
-                Log.d(TAG, "Dropping socket due to space constraints: " + list.element().socket);
-                list.element().socket.close();
-                list.remove();
+    private static class PendingQueries {
+        private final LinkedHashMap<Integer, PendingQuery> queries = new LinkedHashMap<>();
+        private final ArrayList<UpstreamSocket> retired = new ArrayList<>();
+        private final SecureRandom random;
+
+        PendingQueries(SecureRandom random) {
+            this.random = random;
+        }
+
+        int nextId() {
+            int id;
+            do {
+                id = random.nextInt(0x10000);
+            } while (queries.containsKey(id));
+            return id;
+        }
+
+        void add(int id, PendingQuery query) {
+            Iterator<PendingQuery> iterator = queries.values().iterator();
+            while (iterator.hasNext()) {
+                PendingQuery eldest = iterator.next();
+                if (queries.size() <= 1024 && eldest.ageSeconds() <= 10) {
+                    break;
+                }
+                Log.d(TAG, "Dropping query waiting on " + eldest.address);
+                iterator.remove();
+                release(eldest);
             }
-            while (!list.isEmpty() && list.element().ageSeconds() > 10) {
-                Log.d(TAG, "Timeout on socket " + list.element().socket);
-                list.element().socket.close();
-                list.remove();
+            queries.put(id, query);
+            query.upstream.inFlight++;
+        }
+
+        PendingQuery get(int id) {
+            return queries.get(id);
+        }
+
+        void remove(int id) {
+            PendingQuery query = queries.remove(id);
+            if (query != null) {
+                release(query);
             }
-            list.add(wosp);
         }
 
-        @NonNull
-        public Iterator<WaitingOnSocketPacket> iterator() {
-            return list.iterator();
+        /**
+         * Takes a socket out of service, it is closed now or once its queries are done.
+         */
+        void retire(UpstreamSocket upstream) {
+            upstream.retired = true;
+            if (upstream.inFlight == 0) {
+                upstream.close();
+            } else {
+                retired.add(upstream);
+            }
         }
 
-        int size() {
-            return list.size();
+        /**
+         * Forgets every query and closes the retired sockets, which nothing else refers to.
+         */
+        void clear() {
+            queries.clear();
+            for (UpstreamSocket upstream : retired) {
+                upstream.close();
+            }
+            retired.clear();
         }
 
+        private void release(PendingQuery query) {
+            UpstreamSocket upstream = query.upstream;
+            upstream.inFlight--;
+            if (upstream.retired && upstream.inFlight == 0) {
+                upstream.close();
+                retired.remove(upstream);
+            }
+        }
     }
 }
@@ -55,6 +55,7 @@ public class DaedalusVpnService extends VpnService implements Runnable {
     private static final int NOTIFICATION_ACTIVATED = 0;
 
     private static final String TAG = "DaedalusVpnService";
+    private static final long RULE_LOAD_TIMEOUT = 5000;
     private static final String CHANNEL_ID = "daedalus_channel_1";
     private static final String CHANNEL_NAME = "daedalus_channel";
 
@@ -234,7 +235,7 @@ public class DaedalusVpnService extends VpnService implements Runnable {
         stopSelf();
 
         if (shouldRefresh) {
-            RuleResolver.clear();
+            //Rules are kept loaded, the next activation only reloads the files that changed
             DnsServerHelper.clearCache();
             Logger.info("Daedalus VPN service has stopped");
         }
@@ -351,7 +352,7 @@ public class DaedalusVpnService extends VpnService implements Runnable {
             builder.addDnsServer(aliasPrimary).addDnsServer(aliasSecondary);
 
             if (advanced) {
-                builder.setBlocking(true);
+                //The descriptor stays non-blocking, the provider drains it until EAGAIN
                 builder.allowFamily(OsConstants.AF_INET);
                 builder.allowFamily(OsConstants.AF_INET6);
             }
@@ -360,6 +361,8 @@ public class DaedalusVpnService extends VpnService implements Runnable {
             Logger.info("Daedalus VPN service is started");
 
             if (advanced) {
+                //Answer the first queries with the rules instead of racing their load
+                RuleResolver.awaitLoaded(RULE_LOAD_TIMEOUT);
                 provider = ProviderPicker.getProvider(descriptor, this);
                 provider.start();
                 provider.process();
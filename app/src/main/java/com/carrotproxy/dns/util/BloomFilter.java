@@ -0,0 +1,97 @@
+package com.carrotproxy.dns.util;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.LongBuffer;
+
+/**
+ * Daedalus Project
+ *
+ * @author iTX Technologies
+ * @link https://itxtech.org
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Bloom filter over the {@link String#hashCode()} of rule domains. The resolver already
+ * computes these hashes for every suffix of a query, so a query that matches no rule is
+ * rejected in a few memory accesses before any rule table is probed.
+ * <p>
+ * Each rule index carries the filter over its own rules, written when it is compiled and
+ * read through the mapping, so loading a set of indexes does not touch their tables.
+ */
+final class BloomFilter {
+    private static final int BITS_PER_KEY = 12;
+    private static final int HASHES = 5;
+
+    private final LongBuffer bits;
+    private final int mask;
+    private int keys;
+
+    BloomFilter(int expectedKeys) {
+        //Rounded up to a power of two, which only lowers the false positive rate
+        int size = Integer.highestOneBit(Math.max(64, Math.min(expectedKeys, 1 << 26) * BITS_PER_KEY - 1)) << 1;
+        bits = LongBuffer.allocate(size >>> 6);
+        mask = size - 1;
+        keys = 0;
+    }
+
+    /**
+     * @param bits the words written by {@link #write}, a power of two of them
+     * @param keys the number of keys added to them
+     */
+    BloomFilter(LongBuffer bits, int keys) {
+        this.bits = bits;
+        this.mask = (bits.capacity() << 6) - 1;
+        this.keys = keys;
+    }
+
+    void add(int hash) {
+        int h1 = DomainIndex.mix(hash);
+        int h2 = (hash * 0x85EBCA6B) | 1;
+        for (int i = 0; i < HASHES; i++) {
+            int bit = (h1 + i * h2) & mask;
+            bits.put(bit >>> 6, bits.get(bit >>> 6) | 1L << bit);
+        }
+        keys++;
+    }
+
+    boolean mightContain(int hash) {
+        int h1 = DomainIndex.mix(hash);
+        int h2 = (hash * 0x85EBCA6B) | 1;
+        for (int i = 0; i < HASHES; i++) {
+            int bit = (h1 + i * h2) & mask;
+            if ((bits.get(bit >>> 6) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void write(DataOutputStream out) throws IOException {
+        for (int i = 0; i < bits.capacity(); i++) {
+            out.writeLong(bits.get(i));
+        }
+    }
+
+    int getKeys() {
+        return keys;
+    }
+
+    int getWords() {
+        return bits.capacity();
+    }
+
+    int getSizeInBytes() {
+        return bits.capacity() * 8;
+    }
+
+    /**
+     * @return the expected false positive rate for the keys added so far
+     */
+    double getFalsePositiveRate() {
+        return Math.pow(1 - Math.exp(-(double) HASHES * keys / (mask + 1)), HASHES);
+    }
+}
@@ -32,6 +32,8 @@ public class Configurations {
 
     private ArrayList<Rule> hostsRules;
     private ArrayList<Rule> dnsmasqRules;
+    private ArrayList<Rule> allowlistRules;
+    private ArrayList<Rule> patternRules;
 
     private int totalDnsId;
     private int totalRuleId;
@@ -88,40 +90,48 @@ public class Configurations {
         return dnsmasqRules;
     }
 
+    public ArrayList<Rule> getAllowlistRules() {
+        if (allowlistRules == null) {
+            allowlistRules = new ArrayList<>();
+        }
+        return allowlistRules;
+    }
+
+    public ArrayList<Rule> getPatternRules() {
+        if (patternRules == null) {
+            patternRules = new ArrayList<>();
+        }
+        return patternRules;
+    }
+
+    /**
+     * @return the enabled rules in order of increasing precedence: dnsmasq rules first, so an
+     * exact hosts entry overrides a wildcard for the same name, and allowlists, which override both.
+     * Pattern rules only apply to names that no other rule matches.
+     */
     public ArrayList<Rule> getUsingRules() {
-        if (hostsRules != null && hostsRules.size() > 0) {
-            for (Rule rule : hostsRules) {
-                if (rule.isUsing()) {
-                    return hostsRules;
-                }
+        ArrayList<Rule> usingRules = new ArrayList<>();
+        for (Rule rule : getDnsmasqRules()) {
+            if (rule.isUsing()) {
+                usingRules.add(rule);
             }
         }
-        if (dnsmasqRules != null && dnsmasqRules.size() > 0) {
-            for (Rule rule : dnsmasqRules) {
-                if (rule.isUsing()) {
-                    return dnsmasqRules;
-                }
+        for (Rule rule : getHostsRules()) {
+            if (rule.isUsing()) {
+                usingRules.add(rule);
             }
         }
-        return hostsRules;
-    }
-
-    public int getUsingRuleType() {
-        if (hostsRules != null && hostsRules.size() > 0) {
-            for (Rule rule : hostsRules) {
-                if (rule.isUsing()) {
-                    return Rule.TYPE_HOSTS;
-                }
+        for (Rule rule : getAllowlistRules()) {
+            if (rule.isUsing()) {
+                usingRules.add(rule);
             }
         }
-        if (dnsmasqRules != null && dnsmasqRules.size() > 0) {
-            for (Rule rule : dnsmasqRules) {
-                if (rule.isUsing()) {
-                    return Rule.TYPE_DNAMASQ;
-                }
+        for (Rule rule : getPatternRules()) {
+            if (rule.isUsing()) {
+                usingRules.add(rule);
             }
         }
-        return Rule.TYPE_HOSTS;
+        return usingRules;
     }
 
     public static Configurations load(File file) {
@@ -0,0 +1,129 @@
+package com.carrotproxy.dns.util;
+
+/**
+ * Daedalus Project
+ *
+ * @author iTX Technologies
+ * @link https://itxtech.org
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ */
+class DomainIndex {
+    private static final int INITIAL_CAPACITY = 64;
+
+    // Open addressing with linear probing, the capacity is always a power of two
+    private String[] keys = new String[INITIAL_CAPACITY];
+    private String[] values = new String[INITIAL_CAPACITY];
+    private int[] hashes = new int[INITIAL_CAPACITY];
+    private int size = 0;
+
+    int size() {
+        return size;
+    }
+
+    void put(String domain, String value) {
+        if ((size + 1) * 2 > keys.length) {
+            resize(keys.length * 2);
+        }
+        int hash = domain.hashCode();
+        int mask = keys.length - 1;
+        int slot = mix(hash) & mask;
+        while (keys[slot] != null) {
+            if (hashes[slot] == hash && keys[slot].equals(domain)) {
+                values[slot] = value;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = domain;
+        values[slot] = value;
+        hashes[slot] = hash;
+        size++;
+    }
+
+    String get(String domain) {
+        int hash = domain.hashCode();
+        int mask = keys.length - 1;
+        int slot = mix(hash) & mask;
+        while (keys[slot] != null) {
+            if (hashes[slot] == hash && keys[slot].equals(domain)) {
+                return values[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return null;
+    }
+
+    /**
+     * Probes for hostname.substring(start) without building the substring.
+     *
+     * @param hash the {@link String#hashCode()} of hostname.substring(start)
+     * @return the slot holding it, or -1
+     */
+    int find(String hostname, int start, int hash) {
+        int length = hostname.length() - start;
+        int mask = keys.length - 1;
+        int slot = mix(hash) & mask;
+        while (keys[slot] != null) {
+            if (hashes[slot] == hash && keys[slot].length() == length &&
+                    keys[slot].regionMatches(0, hostname, start, length)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    int capacity() {
+        return keys.length;
+    }
+
+    /**
+     * The slot accessors expose the table layout so it can be written out as is.
+     *
+     * @return the key in the slot, or null if it is empty
+     */
+    String keyAt(int slot) {
+        return keys[slot];
+    }
+
+    String valueAt(int slot) {
+        return values[slot];
+    }
+
+    int hashAt(int slot) {
+        return hashes[slot];
+    }
+
+    private void resize(int capacity) {
+        String[] oldKeys = keys;
+        String[] oldValues = values;
+        int[] oldHashes = hashes;
+        keys = new String[capacity];
+        values = new String[capacity];
+        hashes = new int[capacity];
+        int mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != null) {
+                int slot = mix(oldHashes[i]) & mask;
+                while (keys[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+                hashes[slot] = oldHashes[i];
+            }
+        }
+    }
+
+    /**
+     * Spreads String hashes, which differ mostly in their low bits for similar names.
+     */
+    static int mix(int hash) {
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,364 @@
+package com.carrotproxy.dns.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Daedalus Project
+ *
+ * @author iTX Technologies
+ * @link https://itxtech.org
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Matches hostnames against many regex and glob rules at once. Every pattern contributes the
+ * longest literal that any of its matches must contain to a single Aho-Corasick automaton.
+ * One pass of the automaton over the hostname yields the few patterns whose literal occurs,
+ * and only those are run as regular expressions. Patterns without such a literal are run for
+ * every query.
+ */
+final class PatternMatcher {
+    static final PatternMatcher EMPTY = new PatternMatcher(new ArrayList<>());
+
+    private static final int ALPHABET = 40;
+    private static final int MIN_LITERAL = 2;
+    private static final int[] NONE = new int[0];
+
+    private final Pattern[] patterns;
+    private final int[] unfiltered;
+    // Automaton with failure links resolved, transitions[state * ALPHABET + symbol]
+    private final int[] transitions;
+    // The patterns whose literal ends in a state, including those reached by failure links
+    private final int[][] outputs;
+
+    private PatternMatcher(ArrayList<String> expressions) {
+        ArrayList<Pattern> patterns = new ArrayList<>();
+        ArrayList<String> literals = new ArrayList<>();
+        for (String expression : expressions) {
+            String regex = toRegex(expression);
+            try {
+                patterns.add(Pattern.compile(regex, Pattern.CASE_INSENSITIVE));
+                literals.add(getLiteral(regex));
+            } catch (PatternSyntaxException e) {
+                Logger.warning("Invalid rule pattern " + expression + ": " + e.getDescription());
+            }
+        }
+        this.patterns = patterns.toArray(new Pattern[0]);
+
+        ArrayList<int[]> trie = new ArrayList<>();
+        ArrayList<int[]> outputs = new ArrayList<>();
+        trie.add(newState());
+        outputs.add(NONE);
+        int[] unfiltered = new int[this.patterns.length];
+        int unfilteredCount = 0;
+        for (int i = 0; i < this.patterns.length; i++) {
+            String literal = literals.get(i);
+            if (literal == null) {
+                unfiltered[unfilteredCount++] = i;
+                continue;
+            }
+            int state = 0;
+            for (int j = 0; j < literal.length(); j++) {
+                int symbol = symbol(literal.charAt(j));
+                if (trie.get(state)[symbol] == 0) {
+                    trie.get(state)[symbol] = trie.size();
+                    trie.add(newState());
+                    outputs.add(NONE);
+                }
+                state = trie.get(state)[symbol];
+            }
+            outputs.set(state, append(outputs.get(state), i));
+        }
+        this.unfiltered = Arrays.copyOf(unfiltered, unfilteredCount);
+
+        //Breadth first, so the failure state of every state is complete before it is used
+        int[] failure = new int[trie.size()];
+        transitions = new int[trie.size() * ALPHABET];
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        for (int symbol = 0; symbol < ALPHABET; symbol++) {
+            int child = trie.get(0)[symbol];
+            transitions[symbol] = child;
+            if (child != 0) {
+                queue.add(child);
+            }
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            outputs.set(state, concat(outputs.get(state), outputs.get(failure[state])));
+            for (int symbol = 0; symbol < ALPHABET; symbol++) {
+                int child = trie.get(state)[symbol];
+                int fallback = transitions[failure[state] * ALPHABET + symbol];
+                if (child != 0) {
+                    failure[child] = fallback;
+                    transitions[state * ALPHABET + symbol] = child;
+                    queue.add(child);
+                } else {
+                    transitions[state * ALPHABET + symbol] = fallback;
+                }
+            }
+        }
+        this.outputs = outputs.toArray(new int[0][]);
+    }
+
+    /**
+     * Reads one pattern per line, either a regular expression between slashes or a glob
+     * where * matches any run of characters and ? matches one. Globs match the whole name.
+     */
+    static void readPatterns(File file, ArrayList<String> expressions) throws IOException {
+        try (BufferedReader dataIO = new BufferedReader(new InputStreamReader(new FileInputStream(file)))) {
+            String strLine;
+            while ((strLine = dataIO.readLine()) != null) {
+                strLine = strLine.trim();
+                if (!strLine.isEmpty() && !strLine.startsWith("#")) {
+                    expressions.add(strLine);
+                }
+            }
+        }
+    }
+
+    static PatternMatcher compile(ArrayList<String> expressions) {
+        return expressions.isEmpty() ? EMPTY : new PatternMatcher(expressions);
+    }
+
+    int size() {
+        return patterns.length;
+    }
+
+    int getUnfilteredCount() {
+        return unfiltered.length;
+    }
+
+    boolean matches(String hostname) {
+        if (patterns.length == 0) {
+            return false;
+        }
+        for (int index : unfiltered) {
+            if (patterns[index].matcher(hostname).find()) {
+                return true;
+            }
+        }
+        int state = 0;
+        for (int i = 0; i < hostname.length(); i++) {
+            state = transitions[state * ALPHABET + symbol(hostname.charAt(i))];
+            for (int index : outputs[state]) {
+                if (patterns[index].matcher(hostname).find()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static String toRegex(String expression) {
+        if (expression.length() > 1 && expression.startsWith("/") && expression.endsWith("/")) {
+            return expression.substring(1, expression.length() - 1);
+        }
+        StringBuilder builder = new StringBuilder("^");
+        for (int i = 0; i < expression.length(); i++) {
+            char c = expression.charAt(i);
+            if (c == '*') {
+                builder.append(".*");
+            } else if (c == '?') {
+                builder.append('.');
+            } else if (Character.isLetterOrDigit(c) || c == '-' || c == '_') {
+                builder.append(c);
+            } else {
+                builder.append('\\').append(c);
+            }
+        }
+        return builder.append('$').toString();
+    }
+
+    /**
+     * Finds the longest run of literal characters that every match of the regex contains.
+     * Anything that is not plainly required, such as groups, classes, quantifier bounds,
+     * escape sequences and optional characters, ends a run, so the result is conservative.
+     *
+     * @return the lower case literal, or null if there is none worth filtering on
+     */
+    static String getLiteral(String regex) {
+        String best = "";
+        StringBuilder run = new StringBuilder();
+        int depth = 0;
+        int i = 0;
+        while (i < regex.length()) {
+            char c = regex.charAt(i);
+            char literal = 0;
+            int next = i + 1;
+            if (c == '\\' && next < regex.length()) {
+                char escaped = regex.charAt(next);
+                if (Character.isLetterOrDigit(escaped)) {
+                    next = skipEscape(regex, next);
+                } else {
+                    literal = escaped;
+                    next++;
+                }
+            } else if (c == '|' && depth == 0) {
+                //Top level alternatives share no required literal
+                return null;
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (c == '[') {
+                next = skipClass(regex, i);
+            } else if (c == '{') {
+                //The bounds of a quantifier, {n} or {n,m}
+                next = regex.indexOf('}', i);
+                next = next < 0 ? regex.length() : next + 1;
+            } else if (Character.isLetterOrDigit(c) || c == '-' || c == '_' || c == '=' || c == ' ') {
+                literal = c;
+            }
+            char quantifier = next < regex.length() ? regex.charAt(next) : 0;
+            boolean optional = quantifier == '?' || quantifier == '*' ||
+                    (quantifier == '{' && regex.startsWith("{0", next));
+            if (literal != 0 && depth == 0 && !optional) {
+                run.append(Character.toLowerCase(literal));
+            }
+            if (literal == 0 || depth != 0 || optional || quantifier == '+' || quantifier == '{') {
+                //A repeated character is still required once, but ends the run
+                if (run.length() > best.length()) {
+                    best = run.toString();
+                }
+                run.setLength(0);
+            }
+            i = next;
+        }
+        if (run.length() > best.length()) {
+            best = run.toString();
+        }
+        return best.length() >= MIN_LITERAL ? best : null;
+    }
+
+    /**
+     * @param start the position of the character after the backslash
+     * @return the position after the escape sequence
+     */
+    private static int skipEscape(String regex, int start) {
+        int next = start + 1;
+        switch (regex.charAt(start)) {
+            case 'x':
+                //\xhh or \x{h...h}
+                if (next < regex.length() && regex.charAt(next) == '{') {
+                    return skipBraces(regex, next);
+                }
+                return Math.min(next + 2, regex.length());
+            case 'u':
+                return Math.min(next + 4, regex.length());
+            case '0':
+                //Up to three octal digits
+                int end = Math.min(next + 3, regex.length());
+                while (next < end && regex.charAt(next) >= '0' && regex.charAt(next) <= '7') {
+                    next++;
+                }
+                return next;
+            case 'c':
+                return Math.min(next + 1, regex.length());
+            case 'p':
+            case 'P':
+            case 'N':
+            case 'k':
+                //\p{Name}, \N{NAME} and \k<name>, \pL has a single letter name
+                if (next < regex.length() && (regex.charAt(next) == '{' || regex.charAt(next) == '<')) {
+                    return skipBraces(regex, next);
+                }
+                return Math.min(next + 1, regex.length());
+            case 'Q':
+                //Quoted text up to \E
+                int quoteEnd = regex.indexOf("\\E", next);
+                return quoteEnd < 0 ? regex.length() : quoteEnd + 2;
+            default:
+                return next;
+        }
+    }
+
+    private static int skipBraces(String regex, int open) {
+        int close = regex.indexOf(regex.charAt(open) == '<' ? '>' : '}', open);
+        return close < 0 ? regex.length() : close + 1;
+    }
+
+    /**
+     * @return the position after the character class opened at start, classes may be nested
+     * and a ] right after the opening bracket is part of the class
+     */
+    private static int skipClass(String regex, int start) {
+        int depth = 0;
+        int i = start;
+        while (i < regex.length()) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                i += 2;
+                continue;
+            }
+            if (c == '[') {
+                depth++;
+                i++;
+                if (i < regex.length() && regex.charAt(i) == '^') {
+                    i++;
+                }
+                if (i < regex.length() && regex.charAt(i) == ']') {
+                    i++;
+                }
+                continue;
+            }
+            if (c == ']' && --depth == 0) {
+                return i + 1;
+            }
+            i++;
+        }
+        return regex.length();
+    }
+
+    private static int symbol(char c) {
+        if (c >= 'a' && c <= 'z') {
+            return c - 'a' + 1;
+        }
+        if (c >= 'A' && c <= 'Z') {
+            return c - 'A' + 1;
+        }
+        if (c >= '0' && c <= '9') {
+            return c - '0' + 27;
+        }
+        switch (c) {
+            case '-':
+                return 37;
+            case '.':
+                return 38;
+            case '_':
+                return 39;
+            default:
+                //Every other character shares a symbol, which only adds candidates
+                return 0;
+        }
+    }
+
+    private static int[] newState() {
+        return new int[ALPHABET];
+    }
+
+    private static int[] append(int[] array, int value) {
+        int[] result = Arrays.copyOf(array, array.length + 1);
+        result[array.length] = value;
+        return result;
+    }
+
+    private static int[] concat(int[] first, int[] second) {
+        if (second.length == 0) {
+            return first;
+        }
+        int[] result = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+}
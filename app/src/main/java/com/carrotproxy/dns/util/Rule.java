@@ -19,6 +19,8 @@ import java.util.ArrayList;
 public class Rule {
     public static final int TYPE_HOSTS = 0;
     public static final int TYPE_DNAMASQ = 1;
+    public static final int TYPE_ALLOWLIST = 2;
+    public static final int TYPE_PATTERN = 3;
 
     private String name;
     private String fileName;
@@ -52,17 +54,6 @@ public class Rule {
 
     public void setUsing(boolean using) {
         this.using = using;
-        if (using) {
-            if (type == TYPE_HOSTS) {
-                for (Rule rule : Daedalus.configurations.getDnsmasqRules()) {
-                    rule.setUsing(false);
-                }
-            } else if (type == TYPE_DNAMASQ) {
-                for (Rule rule : Daedalus.configurations.getHostsRules()) {
-                    rule.setUsing(false);
-                }
-            }
-        }
     }
 
     public boolean isUsing() {
@@ -108,6 +99,10 @@ public class Rule {
             Daedalus.configurations.getHostsRules().add(this);
         } else if (getType() == Rule.TYPE_DNAMASQ) {
             Daedalus.configurations.getDnsmasqRules().add(this);
+        } else if (getType() == Rule.TYPE_ALLOWLIST) {
+            Daedalus.configurations.getAllowlistRules().add(this);
+        } else if (getType() == Rule.TYPE_PATTERN) {
+            Daedalus.configurations.getPatternRules().add(this);
         }
     }
 
@@ -116,6 +111,10 @@ public class Rule {
             Daedalus.configurations.getHostsRules().remove(this);
         } else if (getType() == Rule.TYPE_DNAMASQ) {
             Daedalus.configurations.getDnsmasqRules().remove(this);
+        } else if (getType() == Rule.TYPE_ALLOWLIST) {
+            Daedalus.configurations.getAllowlistRules().remove(this);
+        } else if (getType() == Rule.TYPE_PATTERN) {
+            Daedalus.configurations.getPatternRules().remove(this);
         }
         File file = new File(getFileName());
         Logger.info("Delete rule " + getName() + " result: " + file.delete());
@@ -132,6 +131,16 @@ public class Rule {
                 return rule;
             }
         }
+        for (Rule rule : Daedalus.configurations.getAllowlistRules()) {
+            if (rule.getId().equals(id)) {
+                return rule;
+            }
+        }
+        for (Rule rule : Daedalus.configurations.getPatternRules()) {
+            if (rule.getId().equals(id)) {
+                return rule;
+            }
+        }
         return null;
     }
 
@@ -141,6 +150,10 @@ public class Rule {
                 return "Hosts";
             case TYPE_DNAMASQ:
                 return "DNSMasq";
+            case TYPE_ALLOWLIST:
+                return "Allowlist";
+            case TYPE_PATTERN:
+                return "Pattern";
             default:
                 return "Unknown";
         }
@@ -0,0 +1,157 @@
+package com.carrotproxy.dns.util;
+
+import java.util.Arrays;
+
+/**
+ * Daedalus Project
+ *
+ * @author iTX Technologies
+ * @link https://itxtech.org
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * The address a rule gives a name, together with its encoding as A or AAAA record data.
+ * Rule files use few distinct addresses, each is decoded once when its index is opened.
+ */
+public final class RuleAddress {
+    private static final byte[] NONE = new byte[0];
+
+    private final String text;
+    private final byte[] data;
+
+    RuleAddress(String text, byte[] data) {
+        this.text = text;
+        this.data = data;
+    }
+
+    /**
+     * @return the record data, shared by every query and not to be modified, or an empty array
+     * if the rule does not hold a valid address
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    public boolean isValid() {
+        return data.length > 0;
+    }
+
+    /**
+     * @return whether the address is 0.0.0.0 or ::, which rules use to block a name
+     */
+    public boolean isUnspecified() {
+        for (byte b : data) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        return data.length > 0;
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+
+    /**
+     * Parses a literal IPv4 or IPv6 address without going through InetAddress, which would
+     * resolve anything that is not a literal.
+     *
+     * @return the 4 or 16 address bytes, or an empty array if the text is not an address
+     */
+    static byte[] encode(String address) {
+        byte[] data = address.indexOf(':') >= 0 ? parseIpv6(address) : parseIpv4(address, 0, address.length());
+        return data == null ? NONE : data;
+    }
+
+    private static byte[] parseIpv4(String address, int start, int end) {
+        byte[] data = new byte[4];
+        int part = 0;
+        int value = -1;
+        for (int i = start; i < end; i++) {
+            char c = address.charAt(i);
+            if (c >= '0' && c <= '9') {
+                value = (value < 0 ? 0 : value * 10) + c - '0';
+                if (value > 255) {
+                    return null;
+                }
+            } else if (c == '.' && value >= 0 && part < 3) {
+                data[part++] = (byte) value;
+                value = -1;
+            } else {
+                return null;
+            }
+        }
+        if (value < 0 || part != 3) {
+            return null;
+        }
+        data[3] = (byte) value;
+        return data;
+    }
+
+    private static byte[] parseIpv6(String address) {
+        byte[] data = new byte[16];
+        int length = address.length();
+        // Position of the bytes :: stands for, -1 if there is none
+        int gap = -1;
+        int position = 0;
+        int i = 0;
+        if (address.startsWith("::")) {
+            gap = 0;
+            i = 2;
+        }
+        while (i < length) {
+            if (position == 16) {
+                return null;
+            }
+            int end = i;
+            int value = 0;
+            while (end < length && end - i < 4 && Character.digit(address.charAt(end), 16) >= 0) {
+                value = value * 16 + Character.digit(address.charAt(end), 16);
+                end++;
+            }
+            if (end < length && address.charAt(end) == '.') {
+                //An IPv4 address in the last 32 bits
+                byte[] ipv4 = position <= 12 ? parseIpv4(address, i, length) : null;
+                if (ipv4 == null) {
+                    return null;
+                }
+                System.arraycopy(ipv4, 0, data, position, 4);
+                position += 4;
+                break;
+            }
+            if (end == i) {
+                return null;
+            }
+            data[position++] = (byte) (value >> 8);
+            data[position++] = (byte) value;
+            i = end;
+            if (i == length) {
+                break;
+            }
+            if (address.charAt(i) != ':' || ++i == length) {
+                return null;
+            }
+            if (address.charAt(i) == ':') {
+                if (gap >= 0) {
+                    return null;
+                }
+                gap = position;
+                i++;
+            }
+        }
+        if (gap < 0) {
+            return position == 16 ? data : null;
+        }
+        if (position == 16) {
+            return null;
+        }
+        int tail = position - gap;
+        System.arraycopy(data, gap, data, 16 - tail, tail);
+        Arrays.fill(data, gap, 16 - tail, (byte) 0);
+        return data;
+    }
+}
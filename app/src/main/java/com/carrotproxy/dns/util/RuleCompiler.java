@@ -0,0 +1,213 @@
+package com.carrotproxy.dns.util;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Daedalus Project
+ *
+ * @author iTX Technologies
+ * @link https://itxtech.org
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Compiles hosts, dnsmasq and allowlist rule files into the index format read by {@link RuleIndex}:
+ * <pre>
+ * header   magic, version, source length and modification time, rule type,
+ *          capacity and offset of the A and AAAA tables, offset of the values,
+ *          number of A and AAAA rules, offset and length in words of the filter
+ * filter   {@link BloomFilter} over the hashes of every key
+ * tables   capacity slots of (hash, key offset, value index), key offset 0 marks an empty slot
+ * keys     length byte followed by the ASCII domain, {@link RuleParser} only accepts ASCII
+ * values   count followed by entries of length byte and address text, then length byte and
+ *          the address as A or AAAA record data, empty if the text is not an address
+ * </pre>
+ * Allowlists use the A table only, with the value telling whether an entry covers subdomains.
+ * The slots are written at the positions they occupy in {@link DomainIndex}, so the mapped
+ * tables are probed exactly like the in-memory one.
+ */
+class RuleCompiler {
+    static final int MAGIC = 0x44524958;//DRIX
+    static final int VERSION = 3;
+    static final int HEADER_LENGTH = 64;
+    static final int SLOT_LENGTH = 12;
+
+    /**
+     * @return whether the index exists and was compiled from the current version of source,
+     * read as the given type
+     */
+    static boolean isCurrent(File source, int type, File index) {
+        if (!index.exists()) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(index))) {
+            return in.readInt() == MAGIC && in.readInt() == VERSION &&
+                    in.readLong() == source.length() && in.readLong() == source.lastModified() &&
+                    in.readInt() == type;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the number of rules read from source
+     */
+    static int compile(File source, int type, File index) throws IOException {
+        DomainIndex rulesA = new DomainIndex();
+        DomainIndex rulesAAAA = new DomainIndex();
+        int count = RuleParser.parse(source, type, rulesA, rulesAAAA);
+        File temp = new File(index.getPath() + ".tmp");
+        write(temp, source, type, rulesA, rulesAAAA);
+        if (!temp.renameTo(index)) {
+            temp.delete();
+            throw new IOException("Unable to replace " + index.getPath());
+        }
+        return count;
+    }
+
+    /**
+     * Compares a new version of a rule file with the rules compiled into an index.
+     *
+     * @param compiled an index without a delta
+     * @param limit    the most changes worth keeping on the heap
+     * @return the changes, or null if there are more than limit of them
+     */
+    static RuleDelta diff(File source, int type, RuleIndex compiled, int limit) throws IOException {
+        DomainIndex rulesA = new DomainIndex();
+        DomainIndex rulesAAAA = new DomainIndex();
+        RuleParser.parse(source, type, rulesA, rulesAAAA);
+        RuleDelta delta = new RuleDelta(limit);
+        return addChanges(delta, false, rulesA, compiled) && addChanges(delta, true, rulesAAAA, compiled) ? delta : null;
+    }
+
+    private static boolean addChanges(RuleDelta delta, boolean ipv6, DomainIndex rules, RuleIndex compiled) {
+        for (int slot = 0; slot < rules.capacity(); slot++) {
+            String key = rules.keyAt(slot);
+            if (key == null) {
+                continue;
+            }
+            String value = rules.valueAt(slot);
+            RuleAddress old = compiled.find(ipv6, key, 0, rules.hashAt(slot));
+            if ((old == null || !old.toString().equals(value)) && !delta.add(ipv6, key, value, old != null)) {
+                return false;
+            }
+        }
+        for (int slot = 0; slot < compiled.getCapacity(ipv6); slot++) {
+            String key = compiled.keyAt(ipv6, slot);
+            if (key != null && rules.get(key) == null && !delta.remove(ipv6, key)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void write(File target, File source, int type, DomainIndex rulesA, DomainIndex rulesAAAA)
+            throws IOException {
+        HashMap<String, Integer> valueIndexes = new HashMap<>();
+        ArrayList<String> values = new ArrayList<>();
+        BloomFilter filter = new BloomFilter(rulesA.size() + rulesAAAA.size());
+        addHashes(filter, rulesA);
+        addHashes(filter, rulesAAAA);
+        int aOffset = HEADER_LENGTH + filter.getSizeInBytes();
+        int aaaaOffset = aOffset + rulesA.capacity() * SLOT_LENGTH;
+        int keysOffset = aaaaOffset + rulesAAAA.capacity() * SLOT_LENGTH;
+        int valuesOffset = keysOffset + keysLength(rulesA) + keysLength(rulesAAAA);
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(target), 65536))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(source.length());
+            out.writeLong(source.lastModified());
+            out.writeInt(type);
+            out.writeInt(rulesA.capacity());
+            out.writeInt(aOffset);
+            out.writeInt(rulesAAAA.capacity());
+            out.writeInt(aaaaOffset);
+            out.writeInt(valuesOffset);
+            out.writeInt(rulesA.size());
+            out.writeInt(rulesAAAA.size());
+            out.writeInt(HEADER_LENGTH);
+            out.writeInt(filter.getWords());
+            filter.write(out);
+
+            int keyOffset = writeSlots(out, rulesA, keysOffset, valueIndexes, values);
+            writeSlots(out, rulesAAAA, keyOffset, valueIndexes, values);
+            writeKeys(out, rulesA);
+            writeKeys(out, rulesAAAA);
+
+            out.writeInt(values.size());
+            for (String value : values) {
+                byte[] bytes = value.getBytes("US-ASCII");
+                out.writeByte(bytes.length);
+                out.write(bytes);
+                byte[] data = RuleAddress.encode(value);
+                out.writeByte(data.length);
+                out.write(data);
+            }
+        }
+    }
+
+    private static int writeSlots(DataOutputStream out, DomainIndex rules, int keyOffset,
+                                  HashMap<String, Integer> valueIndexes, ArrayList<String> values) throws IOException {
+        for (int slot = 0; slot < rules.capacity(); slot++) {
+            String key = rules.keyAt(slot);
+            if (key == null) {
+                out.writeInt(0);
+                out.writeInt(0);
+                out.writeInt(0);
+                continue;
+            }
+            String value = rules.valueAt(slot);
+            Integer valueIndex = valueIndexes.get(value);
+            if (valueIndex == null) {
+                valueIndex = values.size();
+                valueIndexes.put(value, valueIndex);
+                values.add(value);
+            }
+            out.writeInt(rules.hashAt(slot));
+            out.writeInt(keyOffset);
+            out.writeInt(valueIndex);
+            keyOffset += 1 + key.length();
+        }
+        return keyOffset;
+    }
+
+    private static void addHashes(BloomFilter filter, DomainIndex rules) {
+        for (int slot = 0; slot < rules.capacity(); slot++) {
+            if (rules.keyAt(slot) != null) {
+                filter.add(rules.hashAt(slot));
+            }
+        }
+    }
+
+    private static void writeKeys(DataOutputStream out, DomainIndex rules) throws IOException {
+        for (int slot = 0; slot < rules.capacity(); slot++) {
+            String key = rules.keyAt(slot);
+            if (key != null) {
+                out.writeByte(key.length());
+                out.writeBytes(key);
+            }
+        }
+    }
+
+    private static int keysLength(DomainIndex rules) {
+        int length = 0;
+        for (int slot = 0; slot < rules.capacity(); slot++) {
+            String key = rules.keyAt(slot);
+            if (key != null) {
+                length += 1 + key.length();
+            }
+        }
+        return length;
+    }
+}
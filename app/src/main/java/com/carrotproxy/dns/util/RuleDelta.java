@@ -0,0 +1,99 @@
+package com.carrotproxy.dns.util;
+
+import java.util.HashMap;
+
+/**
+ * Daedalus Project
+ *
+ * @author iTX Technologies
+ * @link https://itxtech.org
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * The rules a file has gained, changed or lost since its index was compiled. A small edit of
+ * a large list is kept on the heap on top of the mapped index instead of rewriting it.
+ */
+final class RuleDelta {
+    // Stands for a rule the file no longer has, compared by identity
+    static final RuleAddress REMOVED = new RuleAddress("", new byte[0]);
+
+    // A null value marks a removed rule
+    private final DomainIndex changesA = new DomainIndex();
+    private final DomainIndex changesAAAA = new DomainIndex();
+    // The few distinct addresses are decoded once, like the values of an index
+    private final HashMap<String, RuleAddress> addresses = new HashMap<>();
+    // Over the added and changed rules only, removed ones still pass the filter of the index
+    private final BloomFilter filter;
+    private final int limit;
+    private int changes = 0;
+    private int sizeChange = 0;
+
+    /**
+     * @param limit the most changes worth keeping, beyond that the file is recompiled
+     */
+    RuleDelta(int limit) {
+        this.limit = limit;
+        filter = new BloomFilter(limit);
+    }
+
+    /**
+     * @param replacing whether the index already has a rule for the domain
+     * @return false once there are more changes than the limit
+     */
+    boolean add(boolean ipv6, String domain, String value, boolean replacing) {
+        (ipv6 ? changesAAAA : changesA).put(domain, value);
+        filter.add(domain.hashCode());
+        if (!addresses.containsKey(value)) {
+            addresses.put(value, new RuleAddress(value, RuleAddress.encode(value)));
+        }
+        if (!replacing) {
+            sizeChange++;
+        }
+        return ++changes <= limit;
+    }
+
+    /**
+     * @return false once there are more changes than the limit
+     */
+    boolean remove(boolean ipv6, String domain) {
+        (ipv6 ? changesAAAA : changesA).put(domain, null);
+        sizeChange--;
+        return ++changes <= limit;
+    }
+
+    boolean mightContain(int hash) {
+        return filter.mightContain(hash);
+    }
+
+    /**
+     * @param hash the {@link String#hashCode()} of hostname.substring(start)
+     * @return the changed rule for hostname.substring(start), {@link #REMOVED}, or null if the
+     * rule is unchanged
+     */
+    RuleAddress find(boolean ipv6, String hostname, int start, int hash) {
+        DomainIndex changes = ipv6 ? changesAAAA : changesA;
+        if (changes.size() == 0) {
+            return null;
+        }
+        int slot = changes.find(hostname, start, hash);
+        if (slot < 0) {
+            return null;
+        }
+        String value = changes.valueAt(slot);
+        return value == null ? REMOVED : addresses.get(value);
+    }
+
+    int getChanges() {
+        return changes;
+    }
+
+    /**
+     * @return how many rules the file has gained, negative if it has lost some
+     */
+    int getSizeChange() {
+        return sizeChange;
+    }
+}
@@ -0,0 +1,251 @@
+package com.carrotproxy.dns.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Daedalus Project
+ *
+ * @author iTX Technologies
+ * @link https://itxtech.org
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * A rule file compiled by {@link RuleCompiler}, queried through a read-only mapping so the
+ * rules stay off the Java heap and are paged in on demand. Opening one reads the header and
+ * the values only, the rule count and the filter were written by the compiler.
+ * <p>
+ * A small change of the file can be laid over the compiled rules as a {@link RuleDelta},
+ * which gives a new index sharing the mapping of the old one.
+ */
+class RuleIndex {
+    private final MappedByteBuffer buffer;
+    private final String source;
+    // Of the version of the file the index holds, which is newer than the mapping with a delta
+    private final long sourceLength;
+    private final long sourceModified;
+    private final int type;
+    private final int aCapacity;
+    private final int aOffset;
+    private final int aaaaCapacity;
+    private final int aaaaOffset;
+    private final int size;
+    private final BloomFilter filter;
+    private final RuleAddress[] values;
+    // The index as compiled, this one unless there is a delta
+    private final RuleIndex compiled;
+    private final RuleDelta delta;
+
+    private RuleIndex(MappedByteBuffer buffer, String source) throws IOException {
+        this.buffer = buffer;
+        this.source = source;
+        if (buffer.getInt(0) != RuleCompiler.MAGIC || buffer.getInt(4) != RuleCompiler.VERSION) {
+            throw new IOException("Invalid rule index");
+        }
+        sourceLength = buffer.getLong(8);
+        sourceModified = buffer.getLong(16);
+        type = buffer.getInt(24);
+        aCapacity = buffer.getInt(28);
+        aOffset = buffer.getInt(32);
+        aaaaCapacity = buffer.getInt(36);
+        aaaaOffset = buffer.getInt(40);
+        size = buffer.getInt(48) + buffer.getInt(52);
+        ByteBuffer bits = buffer.duplicate();
+        bits.position(buffer.getInt(56));
+        bits.limit(buffer.getInt(56) + buffer.getInt(60) * 8);
+        filter = new BloomFilter(bits.slice().asLongBuffer(), size);
+        //The few distinct addresses are decoded once, so hits do not allocate
+        int offset = buffer.getInt(44);
+        values = new RuleAddress[buffer.getInt(offset)];
+        offset += 4;
+        for (int i = 0; i < values.length; i++) {
+            int length = buffer.get(offset) & 0xFF;
+            char[] chars = new char[length];
+            for (int j = 0; j < length; j++) {
+                chars[j] = (char) buffer.get(offset + 1 + j);
+            }
+            offset += 1 + length;
+            byte[] data = new byte[buffer.get(offset) & 0xFF];
+            for (int j = 0; j < data.length; j++) {
+                data[j] = buffer.get(offset + 1 + j);
+            }
+            offset += 1 + data.length;
+            values[i] = new RuleAddress(new String(chars), data);
+        }
+        compiled = this;
+        delta = null;
+    }
+
+    private RuleIndex(RuleIndex compiled, RuleDelta delta, long sourceLength, long sourceModified) {
+        buffer = compiled.buffer;
+        source = compiled.source;
+        this.sourceLength = sourceLength;
+        this.sourceModified = sourceModified;
+        type = compiled.type;
+        aCapacity = compiled.aCapacity;
+        aOffset = compiled.aOffset;
+        aaaaCapacity = compiled.aaaaCapacity;
+        aaaaOffset = compiled.aaaaOffset;
+        size = compiled.size + delta.getSizeChange();
+        filter = compiled.filter;
+        values = compiled.values;
+        this.compiled = compiled;
+        this.delta = delta;
+    }
+
+    /**
+     * @param source path of the rule file the index was compiled from
+     */
+    static RuleIndex open(File file, String source) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            //The mapping stays valid after the channel is closed, and after the file is replaced
+            return new RuleIndex(raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length()), source);
+        }
+    }
+
+    /**
+     * @return whether this index holds the current rules of the file, read as the given type
+     */
+    boolean isCompiledFrom(File file, int type) {
+        return isListOf(file, type) && sourceLength == file.length() && sourceModified == file.lastModified();
+    }
+
+    /**
+     * @return whether this index holds some version of the rules of the file, read as the
+     * given type
+     */
+    boolean isListOf(File file, int type) {
+        return this.type == type && source.equals(file.getPath());
+    }
+
+    /**
+     * @param sourceLength   length of the version of the file the delta was taken from
+     * @param sourceModified modification time of that version
+     * @return the rules of the compiled index with the delta applied, which replaces any
+     * delta this index has
+     */
+    RuleIndex withDelta(RuleDelta delta, long sourceLength, long sourceModified) {
+        return new RuleIndex(compiled, delta, sourceLength, sourceModified);
+    }
+
+    /**
+     * @return the index as compiled, without a delta
+     */
+    RuleIndex getCompiled() {
+        return compiled;
+    }
+
+    RuleDelta getDelta() {
+        return delta;
+    }
+
+    /**
+     * @return whether the rules also apply to subdomains, as in dnsmasq address= lines
+     */
+    boolean isWildcard() {
+        return type == RuleResolver.MODE_DNSMASQ;
+    }
+
+    boolean isAllowlist() {
+        return type == RuleResolver.MODE_ALLOWLIST;
+    }
+
+    /**
+     * Allowlist entries are kept in the A table, their value tells whether they also cover
+     * subdomains.
+     *
+     * @return whether this allowlist covers hostname.substring(start)
+     */
+    boolean allows(String hostname, int start, int hash) {
+        RuleAddress value = find(false, hostname, start, hash);
+        return value != null && (start == 0 || value.toString().equals(RuleParser.ALLOW_WILDCARD));
+    }
+
+    /**
+     * @return the number of rules in the index
+     */
+    int size() {
+        return size;
+    }
+
+    BloomFilter getFilter() {
+        return filter;
+    }
+
+    /**
+     * @param hash the {@link String#hashCode()} of a domain
+     * @return false if no table of the index holds the domain
+     */
+    boolean mightContain(int hash) {
+        return filter.mightContain(hash) || delta != null && delta.mightContain(hash);
+    }
+
+    int getCapacity(boolean ipv6) {
+        return ipv6 ? aaaaCapacity : aCapacity;
+    }
+
+    /**
+     * Reads the tables of the compiled index, for comparing them with a new version of the file.
+     *
+     * @return the domain in the slot, or null if it is empty
+     */
+    String keyAt(boolean ipv6, int slot) {
+        int keyOffset = buffer.getInt((ipv6 ? aaaaOffset : aOffset) + slot * RuleCompiler.SLOT_LENGTH + 4);
+        if (keyOffset == 0) {
+            return null;
+        }
+        char[] chars = new char[buffer.get(keyOffset) & 0xFF];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = (char) buffer.get(keyOffset + 1 + i);
+        }
+        return new String(chars);
+    }
+
+    /**
+     * @param hash the {@link String#hashCode()} of hostname.substring(start)
+     * @return the address stored for hostname.substring(start), or null
+     */
+    RuleAddress find(boolean ipv6, String hostname, int start, int hash) {
+        if (delta != null) {
+            RuleAddress changed = delta.find(ipv6, hostname, start, hash);
+            if (changed != null) {
+                return changed == RuleDelta.REMOVED ? null : changed;
+            }
+        }
+        int capacity = ipv6 ? aaaaCapacity : aCapacity;
+        int offset = ipv6 ? aaaaOffset : aOffset;
+        int mask = capacity - 1;
+        int slot = DomainIndex.mix(hash) & mask;
+        while (true) {
+            int position = offset + slot * RuleCompiler.SLOT_LENGTH;
+            int keyOffset = buffer.getInt(position + 4);
+            if (keyOffset == 0) {
+                return null;
+            }
+            if (buffer.getInt(position) == hash && keyEquals(keyOffset, hostname, start)) {
+                return values[buffer.getInt(position + 8)];
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private boolean keyEquals(int keyOffset, String hostname, int start) {
+        int length = buffer.get(keyOffset) & 0xFF;
+        if (length != hostname.length() - start) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (buffer.get(keyOffset + 1 + i) != hostname.charAt(start + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,45 @@
+package com.carrotproxy.dns.util;
+
+/**
+ * Daedalus Project
+ *
+ * @author iTX Technologies
+ * @link https://itxtech.org
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * The rules found for a query. A name listed in only one address family is still listed, so
+ * every type of a blocked name can be answered locally.
+ */
+public final class RuleMatch {
+    private final RuleAddress address;
+    private final RuleAddress listed;
+
+    RuleMatch(RuleAddress address, RuleAddress listed) {
+        this.address = address;
+        this.listed = listed;
+    }
+
+    /**
+     * @return the rule for the queried address family, or null for other query types and for
+     * names listed only in the other family
+     */
+    public RuleAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * @return whether the deciding rule maps the name to the unspecified address
+     */
+    public boolean isBlocked() {
+        return listed.isUnspecified();
+    }
+
+    @Override
+    public String toString() {
+        return listed.toString();
+    }
+}
@@ -0,0 +1,263 @@
+package com.carrotproxy.dns.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Daedalus Project
+ *
+ * @author iTX Technologies
+ * @link https://itxtech.org
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Streaming parser for hosts and dnsmasq rule files. Lines are tokenized in place in a
+ * reused byte buffer, only the domains and addresses that end up in the index become Strings.
+ */
+class RuleParser {
+    private static final int BUFFER_SIZE = 65536;
+    // Values of allowlist entries, which are stored in the A table
+    static final String ALLOW_EXACT = "";
+    static final String ALLOW_WILDCARD = "*";
+
+    private final int type;
+    private final DomainIndex rulesA;
+    private final DomainIndex rulesAAAA;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    // Rule lists use few distinct addresses, usually the same one on every line
+    private String lastValue = null;
+    private int count = 0;
+
+    private RuleParser(int type, DomainIndex rulesA, DomainIndex rulesAAAA) {
+        this.type = type;
+        this.rulesA = rulesA;
+        this.rulesAAAA = rulesAAAA;
+    }
+
+    /**
+     * @return the number of rules read
+     */
+    static int parse(File file, int type, DomainIndex rulesA, DomainIndex rulesAAAA) throws IOException {
+        RuleParser parser = new RuleParser(type, rulesA, rulesAAAA);
+        try (InputStream stream = new FileInputStream(file)) {
+            parser.parse(stream);
+        }
+        return parser.count;
+    }
+
+    private void parse(InputStream stream) throws IOException {
+        int length = 0;
+        boolean skipping = false;
+        int read;
+        while ((read = stream.read(buffer, length, buffer.length - length)) > 0) {
+            length += read;
+            int start = 0;
+            for (int i = 0; i < length; i++) {
+                if (buffer[i] == '\n') {
+                    if (!skipping) {
+                        parseLine(start, i);
+                    }
+                    skipping = false;
+                    start = i + 1;
+                }
+            }
+            if (start == 0 && length == buffer.length) {
+                //A line longer than the buffer can not be a valid rule, drop it up to its end
+                skipping = true;
+                length = 0;
+            } else {
+                System.arraycopy(buffer, start, buffer, 0, length - start);
+                length -= start;
+            }
+        }
+        if (length > 0 && !skipping) {
+            parseLine(0, length);
+        }
+    }
+
+    private void parseLine(int start, int end) {
+        if (end > start && buffer[end - 1] == '\r') {
+            end--;
+        }
+        start = skipSpace(start, end);
+        if (start == end || buffer[start] == '#') {
+            return;
+        }
+        switch (type) {
+            case RuleResolver.MODE_DNSMASQ:
+                parseDnsmasqLine(start, end);
+                break;
+            case RuleResolver.MODE_ALLOWLIST:
+                parseAllowlistLine(start, end);
+                break;
+            default:
+                parseHostsLine(start, end);
+                break;
+        }
+    }
+
+    /**
+     * address IPv4 or IPv6 address
+     * name [name...] [# comment]
+     */
+    private void parseHostsLine(int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (buffer[i] == '#') {
+                end = i;
+                break;
+            }
+        }
+        int addressEnd = skipToken(start, end);
+        boolean ipv6 = contains(start, addressEnd, ':');
+        if (!ipv6 && !contains(start, addressEnd, '.')) {
+            return;
+        }
+        String address = null;
+        int position = skipSpace(addressEnd, end);
+        while (position < end) {
+            int nameEnd = skipToken(position, end);
+            if (address == null) {
+                address = getValue(start, addressEnd);
+            }
+            add(ipv6, position, nameEnd, address);
+            position = skipSpace(nameEnd, end);
+        }
+    }
+
+    /**
+     * address=/[.]domain/address
+     */
+    private void parseDnsmasqLine(int start, int end) {
+        int prefix = "address=/".length();
+        if (end - start < prefix || !startsWith(start, "address=/")) {
+            return;
+        }
+        int domainStart = start + prefix;
+        int domainEnd = indexOf(domainStart, end, '/');
+        if (domainEnd < 0) {
+            return;
+        }
+        int valueStart = domainEnd + 1;
+        while (end > valueStart && (buffer[end - 1] == ' ' || buffer[end - 1] == '\t')) {
+            end--;
+        }
+        if (valueStart == end || indexOf(valueStart, end, '/') >= 0) {
+            return;
+        }
+        if (domainEnd > domainStart && buffer[domainStart] == '.') {
+            domainStart++;
+        }
+        boolean ipv6 = contains(valueStart, end, ':');
+        if (ipv6 || contains(valueStart, end, '.')) {
+            add(ipv6, domainStart, domainEnd, getValue(valueStart, end));
+        }
+    }
+
+    /**
+     * name [# comment]            the name itself
+     * *.name or .name [# comment] the name and all of its subdomains
+     */
+    private void parseAllowlistLine(int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (buffer[i] == '#') {
+                end = i;
+                break;
+            }
+        }
+        end = skipToken(start, end);
+        String value = ALLOW_EXACT;
+        if (end - start > 1 && buffer[start] == '*' && buffer[start + 1] == '.') {
+            start += 2;
+            value = ALLOW_WILDCARD;
+        } else if (end > start && buffer[start] == '.') {
+            start++;
+            value = ALLOW_WILDCARD;
+        }
+        add(false, start, end, value);
+    }
+
+    private void add(boolean ipv6, int start, int end, String value) {
+        //Names outside ASCII never arrive in a query, they are IDNA encoded
+        if (start == end || end - start > 255 || !isAscii(start, end) || value == null) {
+            return;
+        }
+        String domain = new String(buffer, start, end - start, StandardCharsets.ISO_8859_1);
+        DomainIndex rules = ipv6 ? rulesAAAA : rulesA;
+        if (value == ALLOW_EXACT && rules.get(domain) == ALLOW_WILDCARD) {
+            //A wildcard entry already covers the name itself
+            return;
+        }
+        rules.put(domain, value);
+        count++;
+    }
+
+    private String getValue(int start, int end) {
+        int length = end - start;
+        if (length > 255 || !isAscii(start, end)) {
+            return null;
+        }
+        String value = lastValue;
+        if (value != null && value.length() == length) {
+            int i = 0;
+            while (i < length && value.charAt(i) == buffer[start + i]) {
+                i++;
+            }
+            if (i == length) {
+                return value;
+            }
+        }
+        lastValue = new String(buffer, start, length, StandardCharsets.ISO_8859_1);
+        return lastValue;
+    }
+
+    private int skipSpace(int position, int end) {
+        while (position < end && (buffer[position] == ' ' || buffer[position] == '\t')) {
+            position++;
+        }
+        return position;
+    }
+
+    private int skipToken(int position, int end) {
+        while (position < end && buffer[position] != ' ' && buffer[position] != '\t') {
+            position++;
+        }
+        return position;
+    }
+
+    private int indexOf(int start, int end, char c) {
+        for (int i = start; i < end; i++) {
+            if (buffer[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean contains(int start, int end, char c) {
+        return indexOf(start, end, c) >= 0;
+    }
+
+    private boolean startsWith(int start, String prefix) {
+        for (int i = 0; i < prefix.length(); i++) {
+            if (buffer[start + i] != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isAscii(int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (buffer[i] < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
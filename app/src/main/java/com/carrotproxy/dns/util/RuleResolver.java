@@ -1,12 +1,21 @@
 package com.carrotproxy.dns.util;
 
+import com.carrotproxy.dns.Daedalus;
 import org.minidns.record.Record;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.InputStreamReader;
-import java.util.HashMap;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Daedalus Project
@@ -19,7 +28,7 @@ import java.util.HashMap;
  * the Free Software Foundation, either version 3 of the License, or
  * (at your option) any later version.
  */
-public class RuleResolver implements Runnable {
+public class RuleResolver {
 
     public static final int STATUS_LOADED = 0;
     public static final int STATUS_LOADING = 1;
@@ -28,163 +37,227 @@ public class RuleResolver implements Runnable {
 
     public static final int MODE_HOSTS = 0;
     public static final int MODE_DNSMASQ = 1;
+    public static final int MODE_ALLOWLIST = 2;
+    public static final int MODE_PATTERN = 3;
 
-    private static int status = STATUS_NOT_LOADED;
-    private static int mode = MODE_HOSTS;
-    private static String[] hostsFiles;
-    private static String[] dnsmasqFiles;
-    private static HashMap<String, String> rulesA = new HashMap<>();
-    private static HashMap<String, String> rulesAAAA = new HashMap<>();
-    private static boolean shutdown = false;
+    //The loader thread is parked while no load is queued
+    private static final ExecutorService loader = Executors.newSingleThreadExecutor(r -> new Thread(r, "RuleResolver"));
+    // A changed file whose changes are at most this fraction of its rules is not recompiled
+    private static final int DELTA_FRACTION = 32;
+    private static final int MIN_DELTA = 256;
 
-    public RuleResolver() {
-        status = STATUS_NOT_LOADED;
-        hostsFiles = new String[0];
-        dnsmasqFiles = new String[0];
-        shutdown = false;
-    }
+    private static final ForkJoinPool compilers = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    private static volatile int status = STATUS_NOT_LOADED;
+    private static volatile RuleSet rules = RuleSet.EMPTY;
+    private static Future<Boolean> pendingLoad = null;
+    // Incremented by every load request and clear(), a load only publishes if it is still the latest
+    private static int generation = 0;
 
     public static void shutdown() {
-        shutdown = true;
-    }
-
-    public static void startLoadHosts(String[] loadFile) {
-        hostsFiles = loadFile;
-        mode = MODE_HOSTS;
-        status = STATUS_PENDING_LOAD;
+        loader.shutdownNow();
+        compilers.shutdownNow();
     }
 
-    public static void startLoadDnsmasq(String[] loadPath) {
-        dnsmasqFiles = loadPath;
-        mode = MODE_DNSMASQ;
+    /**
+     * Queues a load of the rule files, replacing a queued load that has not started yet.
+     * Hosts and dnsmasq files can be mixed, a later file overrides an earlier one.
+     *
+     * @param types {@link #MODE_HOSTS}, {@link #MODE_DNSMASQ}, {@link #MODE_ALLOWLIST} or
+     *              {@link #MODE_PATTERN} for each file
+     * @return completes with whether the rules were loaded
+     */
+    public static synchronized Future<Boolean> startLoad(String[] files, int[] types) {
+        if (pendingLoad != null) {
+            pendingLoad.cancel(false);
+        }
+        int loadGeneration = ++generation;
         status = STATUS_PENDING_LOAD;
+        pendingLoad = loader.submit(() -> load(files, types, loadGeneration));
+        return pendingLoad;
     }
 
-    public static void clear() {
-        rulesA = new HashMap<>();
-        rulesAAAA = new HashMap<>();
-    }
-
-    public static String resolve(String hostname, Record.TYPE type) {
-        HashMap<String, String> rules;
-        if (type == Record.TYPE.A) {
-            rules = rulesA;
-        } else if (type == Record.TYPE.AAAA) {
-            rules = rulesAAAA;
-        } else {
-            return null;
+    /**
+     * Waits for the latest load to finish.
+     *
+     * @return whether the rules are loaded, false if the load failed or did not finish in time
+     */
+    public static boolean awaitLoaded(long timeoutMillis) {
+        Future<Boolean> load;
+        synchronized (RuleResolver.class) {
+            load = pendingLoad;
         }
-        if (rules.size() == 0) {
-            return null;
+        if (load == null) {
+            return status == STATUS_LOADED;
         }
-        if (rules.containsKey(hostname)) {
-            return rules.get(hostname);
+        try {
+            return load.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (TimeoutException e) {
+            Logger.warning("Rules are still loading after " + timeoutMillis + "ms");
+        } catch (CancellationException | ExecutionException ignored) {
         }
-        if (mode == MODE_DNSMASQ) {
-            String[] pieces = hostname.split("\\.");
-            StringBuilder builder;
-            for (int i = 1; i < pieces.length; i++) {
-                builder = new StringBuilder();
-                for (int j = i; j < pieces.length; j++) {
-                    builder.append(pieces[j]);
-                    if (j < pieces.length - 1) {
-                        builder.append(".");
-                    }
-                }
-                if (rules.containsKey(builder.toString())) {
-                    return rules.get(builder.toString());
-                }
-            }
+        return false;
+    }
+
+    public static synchronized void clear() {
+        if (pendingLoad != null) {
+            pendingLoad.cancel(false);
+            pendingLoad = null;
         }
-        return null;
+        generation++;
+        rules = RuleSet.EMPTY;
+        status = STATUS_NOT_LOADED;
+        //Queued behind any running load, which may still be compiling into the directory
+        loader.execute(() -> pruneIndexes(new HashSet<>()));
     }
 
-    private void load() {
+    /**
+     * Looks up both address families at once, the family of the query type first.
+     *
+     * @return the match, or null if no rule lists the hostname
+     */
+    public static RuleMatch resolve(String hostname, Record.TYPE type) {
+        return rules.resolve(hostname, type == Record.TYPE.AAAA,
+                type == Record.TYPE.A || type == Record.TYPE.AAAA);
+    }
+
+    private static boolean load(String[] files, int[] types, int loadGeneration) {
         try {
             status = STATUS_LOADING;
-            rulesA = new HashMap<>();
-            rulesAAAA = new HashMap<>();
-            if (mode == MODE_HOSTS) {
-                for (String hostsFile : hostsFiles) {
-                    File file = new File(hostsFile);
-                    if (file.canRead()) {
-                        Logger.info("Loading hosts from " + file.toString());
-                        FileInputStream stream = new FileInputStream(file);
-                        BufferedReader dataIO = new BufferedReader(new InputStreamReader(stream));
-                        String strLine;
-                        String[] data;
-                        int count = 0;
-                        while ((strLine = dataIO.readLine()) != null) {
-                            if (!strLine.equals("") && !strLine.startsWith("#")) {
-                                data = strLine.split("\\s+");
-                                if (strLine.contains(":")) {//IPv6
-                                    rulesAAAA.put(data[1], data[0]);
-                                } else if (strLine.contains(".")) {//IPv4
-                                    rulesA.put(data[1], data[0]);
-                                }
-                                count++;
-                            }
-                        }
-
-                        dataIO.close();
-                        stream.close();
-
-                        Logger.info("Loaded " + count + " rules");
+            long start = System.currentTimeMillis();
+            //The current rules keep answering queries until the new set is complete
+            RuleSet current = rules;
+            //Changed files are compiled concurrently, the layers keep the order of the files
+            ArrayList<RuleIndex> loaded = new ArrayList<>();
+            ArrayList<ForkJoinTask<RuleIndex>> compiling = new ArrayList<>();
+            ArrayList<String> expressions = new ArrayList<>();
+            HashSet<String> indexes = new HashSet<>();
+            int reused = 0;
+            for (int i = 0; i < files.length; i++) {
+                File file = new File(files[i]);
+                if (file.canRead()) {
+                    Logger.info("Loading rules (" + (i + 1) + "/" + files.length + ") from " + file.toString());
+                    int type = types[i];
+                    if (type == MODE_PATTERN) {
+                        //All patterns share one automaton, which is rebuilt on every load
+                        PatternMatcher.readPatterns(file, expressions);
+                        continue;
                     }
-                }
-            } else if (mode == MODE_DNSMASQ) {
-                for (String dnsmasqFile : dnsmasqFiles) {
-                    File file = new File(dnsmasqFile);
-                    if (file.canRead()) {
-                        Logger.info("Loading DNSMasq configuration from " + file.toString());
-                        FileInputStream stream = new FileInputStream(file);
-                        BufferedReader dataIO = new BufferedReader(new InputStreamReader(stream));
-                        String strLine;
-                        String[] data;
-                        int count = 0;
-                        while ((strLine = dataIO.readLine()) != null) {
-                            if (!strLine.equals("") && !strLine.startsWith("#")) {
-                                data = strLine.split("/");
-                                if (data.length == 3 && data[0].equals("address=")) {
-                                    if (data[1].startsWith(".")) {
-                                        data[1] = data[1].substring(1, data[1].length());
-                                    }
-                                    if (strLine.contains(":")) {//IPv6
-                                        rulesAAAA.put(data[1], data[2]);
-                                    } else if (strLine.contains(".")) {//IPv4
-                                        rulesA.put(data[1], data[2]);
-                                    }
-                                    count++;
-                                }
-                            }
-                        }
-
-                        dataIO.close();
-                        stream.close();
-
-                        Logger.info("Loaded " + count + " rules");
+                    indexes.add(getIndexFile(file).getName());
+                    RuleIndex layer = current.getLayer(file, type);
+                    if (layer != null) {
+                        reused++;
                     }
+                    RuleIndex previous = layer != null ? null : current.getPreviousLayer(file, type);
+                    loaded.add(layer);
+                    compiling.add(layer != null ? null : compilers.submit(() -> openIndex(file, type, previous)));
                 }
             }
-            status = STATUS_LOADED;
+            for (int i = 0; i < loaded.size(); i++) {
+                if (compiling.get(i) != null) {
+                    loaded.set(i, compiling.get(i).get());
+                }
+            }
+            long patternStart = System.currentTimeMillis();
+            PatternMatcher patterns = PatternMatcher.compile(expressions);
+            if (patterns.size() > 0) {
+                Logger.info("Compiled " + patterns.size() + " patterns in " + (System.currentTimeMillis() - patternStart) +
+                        "ms, " + patterns.getUnfilteredCount() + " of them are tried on every query");
+            }
+            RuleSet updated = new RuleSet(loaded.toArray(new RuleIndex[0]), patterns);
+            synchronized (RuleResolver.class) {
+                if (loadGeneration != generation) {
+                    return false;
+                }
+                rules = updated;
+                status = STATUS_LOADED;
+            }
+            pruneIndexes(indexes);
+            Logger.info("Rules updated in " + (System.currentTimeMillis() - start) + "ms, " +
+                    loaded.size() + " files of which " + reused + " unchanged, " +
+                    updated.getAllowlistSize() + " allowlist entries");
+            Logger.info("Rule filters hold " + updated.size() + " rules in " + updated.getFilterSizeInBytes() / 1024 +
+                    "KB, estimated false positive rate " + String.format("%.2f%%", updated.getFalsePositiveRate() * 100));
+            return true;
         } catch (Exception e) {
             Logger.logException(e);
 
-            status = STATUS_NOT_LOADED;
+            synchronized (RuleResolver.class) {
+                if (loadGeneration == generation) {
+                    status = STATUS_NOT_LOADED;
+                }
+            }
+            return false;
         }
     }
 
-    @Override
-    public void run() {
-        try {
-            while (!shutdown) {
-                if (status == STATUS_PENDING_LOAD) {
-                    load();
+    /**
+     * Maps the compiled index of a rule file, compiling it first if the file has changed
+     * since the index was written. A few changes are applied to the loaded index instead.
+     *
+     * @param previous the loaded layer of an earlier version of the file, or null
+     */
+    private static RuleIndex openIndex(File file, int type, RuleIndex previous) throws IOException {
+        File index = getIndexFile(file);
+        if (!RuleCompiler.isCurrent(file, type, index)) {
+            if (previous != null) {
+                RuleIndex updated = applyChanges(file, type, previous.getCompiled());
+                if (updated != null) {
+                    return updated;
                 }
-                Thread.sleep(100);
             }
-        } catch (Exception e) {
-            Logger.logException(e);
+            Logger.info("Compiling " + (type == MODE_DNSMASQ ? "DNSMasq configuration" :
+                    type == MODE_ALLOWLIST ? "allowlist" : "hosts") + " from " + file.toString());
+            long start = System.currentTimeMillis();
+            int count = RuleCompiler.compile(file, type, index);
+            Logger.info("Compiled " + count + " rules in " + (System.currentTimeMillis() - start) + "ms");
+        } else {
+            Logger.info("Loading compiled rules of " + file.toString());
+        }
+        return RuleIndex.open(index, file.getPath());
+    }
+
+    /**
+     * Lays the changes of a rule file over its loaded index. The index file keeps the old
+     * rules, so the next start of the app compiles the file in full.
+     *
+     * @return the updated index, or null if the file has too many changes
+     */
+    private static RuleIndex applyChanges(File file, int type, RuleIndex compiled) throws IOException {
+        long start = System.currentTimeMillis();
+        //Taken before reading, a change made meanwhile is then found on the next load
+        long length = file.length();
+        long modified = file.lastModified();
+        RuleDelta delta = RuleCompiler.diff(file, type, compiled, Math.max(MIN_DELTA, compiled.size() / DELTA_FRACTION));
+        if (delta == null) {
+            Logger.info("Too many changes in " + file.toString() + " to apply them to the loaded rules");
+            return null;
+        }
+        Logger.info("Applied " + delta.getChanges() + " changed rules of " + file.toString() + " in " +
+                (System.currentTimeMillis() - start) + "ms");
+        return compiled.withDelta(delta, length, modified);
+    }
+
+    private static File getIndexFile(File file) {
+        return new File(Daedalus.indexPath, file.getName() + ".idx");
+    }
+
+    /**
+     * Deletes the indexes of rule files that are no longer loaded, and whatever an interrupted
+     * compile left behind. Layers still mapped by the previous rules stay readable.
+     *
+     * @param kept names of the indexes of the loaded files
+     */
+    private static void pruneIndexes(HashSet<String> kept) {
+        File[] indexes = Daedalus.indexPath == null ? null : new File(Daedalus.indexPath).listFiles();
+        if (indexes == null) {
+            return;
+        }
+        for (File index : indexes) {
+            if (!kept.contains(index.getName()) && index.delete()) {
+                Logger.info("Deleted unused rule index " + index.getName());
+            }
         }
     }
 }
@@ -0,0 +1,188 @@
+package com.carrotproxy.dns.util;
+
+import java.io.File;
+import java.util.ArrayList;
+
+/**
+ * Daedalus Project
+ *
+ * @author iTX Technologies
+ * @link https://itxtech.org
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * An immutable set of loaded rule files. A reload builds a new set and publishes it at once,
+ * so a query always sees either the complete old rules or the complete new ones.
+ */
+final class RuleSet {
+    // Pattern rules carry no address, a matching name is answered with the unspecified one
+    private static final RuleAddress PATTERN_A = new RuleAddress("0.0.0.0", new byte[4]);
+    private static final RuleAddress PATTERN_AAAA = new RuleAddress("::", new byte[16]);
+
+    static final RuleSet EMPTY = new RuleSet(new RuleIndex[0], PatternMatcher.EMPTY);
+
+    // Rule files in load order, a later file overrides an earlier one
+    private final RuleIndex[] layers;
+    // The dnsmasq layers, the only ones that can match a parent domain of the query
+    private final RuleIndex[] wildcardLayers;
+    // Allowlists are kept apart, a match in any of them overrides every other rule
+    private final RuleIndex[] allowLayers;
+    // Regex and glob rules, only tried for names that no other rule matches
+    private final PatternMatcher patterns;
+
+    RuleSet(RuleIndex[] loaded, PatternMatcher patterns) {
+        this.patterns = patterns;
+        ArrayList<RuleIndex> layers = new ArrayList<>();
+        ArrayList<RuleIndex> wildcardLayers = new ArrayList<>();
+        ArrayList<RuleIndex> allowLayers = new ArrayList<>();
+        //Only the headers are read here, the filters come with the layers
+        for (RuleIndex layer : loaded) {
+            if (layer.isAllowlist()) {
+                allowLayers.add(layer);
+                continue;
+            }
+            layers.add(layer);
+            if (layer.isWildcard()) {
+                wildcardLayers.add(layer);
+            }
+        }
+        this.layers = layers.toArray(new RuleIndex[0]);
+        this.wildcardLayers = wildcardLayers.toArray(new RuleIndex[0]);
+        this.allowLayers = allowLayers.toArray(new RuleIndex[0]);
+    }
+
+    /**
+     * @return the number of rules, allowlists excluded
+     */
+    int size() {
+        int size = 0;
+        for (RuleIndex layer : layers) {
+            size += layer.size();
+        }
+        return size;
+    }
+
+    int getAllowlistSize() {
+        int size = 0;
+        for (RuleIndex layer : allowLayers) {
+            size += layer.size();
+        }
+        return size;
+    }
+
+    int getFilterSizeInBytes() {
+        int size = 0;
+        for (RuleIndex layer : layers) {
+            size += layer.getFilter().getSizeInBytes();
+        }
+        return size;
+    }
+
+    /**
+     * @return the chance that a domain without rules passes the filter of at least one layer
+     */
+    double getFalsePositiveRate() {
+        double rejected = 1;
+        for (RuleIndex layer : layers) {
+            rejected *= 1 - layer.getFilter().getFalsePositiveRate();
+        }
+        return 1 - rejected;
+    }
+
+    PatternMatcher getPatterns() {
+        return patterns;
+    }
+
+    /**
+     * @return the loaded layer of the rule file, if it has not changed since it was compiled
+     */
+    RuleIndex getLayer(File file, int type) {
+        for (RuleIndex[] group : new RuleIndex[][]{layers, allowLayers}) {
+            for (RuleIndex layer : group) {
+                if (layer.isCompiledFrom(file, type)) {
+                    return layer;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the loaded layer of an earlier version of the rule file, or null
+     */
+    RuleIndex getPreviousLayer(File file, int type) {
+        for (RuleIndex[] group : new RuleIndex[][]{layers, allowLayers}) {
+            for (RuleIndex layer : group) {
+                if (layer.isListOf(file, type)) {
+                    return layer;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Finds the most specific rule of both address families in a single pass over the
+     * suffixes of the hostname. Pattern rules stand in for the preferred family when it has
+     * no rule of its own.
+     *
+     * @param ipv6         whether the AAAA rules are preferred over the A rules
+     * @param addressQuery whether the query asks for addresses, other types get none
+     * @return the match, or null if no rule matches or the hostname is allowlisted
+     */
+    RuleMatch resolve(String hostname, boolean ipv6, boolean addressQuery) {
+        if (layers.length == 0 && patterns.size() == 0) {
+            return null;
+        }
+        //Hash every suffix in a single pass from the right, following String.hashCode()
+        RuleAddress preferred = null;
+        RuleAddress other = null;
+        int hash = 0;
+        int power = 1;
+        for (int i = hostname.length() - 1; i >= 0; i--) {
+            hash += hostname.charAt(i) * power;
+            power *= 31;
+            if (i != 0 && hostname.charAt(i - 1) != '.') {
+                continue;
+            }
+            for (RuleIndex layer : allowLayers) {
+                if (layer.mightContain(hash) && layer.allows(hostname, i, hash)) {
+                    return null;
+                }
+            }
+            //Only the full name can match an exact hosts rule
+            RuleIndex[] candidates = i == 0 ? layers : wildcardLayers;
+            RuleAddress first = null;
+            RuleAddress second = null;
+            for (int j = candidates.length - 1; j >= 0 && (first == null || second == null); j--) {
+                //Most suffixes are rejected here, before the tables are probed
+                if (!candidates[j].mightContain(hash)) {
+                    continue;
+                }
+                if (first == null) {
+                    first = candidates[j].find(ipv6, hostname, i, hash);
+                }
+                if (second == null) {
+                    second = candidates[j].find(!ipv6, hostname, i, hash);
+                }
+            }
+            //Suffixes are visited from the shortest, so a later match is a longer one
+            if (first != null) {
+                preferred = first;
+            }
+            if (second != null) {
+                other = second;
+            }
+        }
+        if (preferred == null && patterns.matches(hostname)) {
+            preferred = ipv6 ? PATTERN_AAAA : PATTERN_A;
+        }
+        if (preferred == null && other == null) {
+            return null;
+        }
+        return new RuleMatch(addressQuery ? preferred : null, preferred != null ? preferred : other);
+    }
+}
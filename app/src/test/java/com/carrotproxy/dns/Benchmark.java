@@ -0,0 +1,111 @@
+package com.carrotproxy.dns;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+
+/**
+ * Daedalus Project
+ *
+ * @author iTX Technologies
+ * @link https://itxtech.org
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Measurements shared by the *Benchmark classes. Those are left out of the unit tests and run
+ * with {@code ./gradlew testPureDebugUnitTest -Pbenchmark}, each prints one line per result.
+ */
+public final class Benchmark {
+    // Results are stored here so the JIT can not drop the measured work
+    private static volatile Object sink;
+
+    /**
+     * One invocation of the code being measured.
+     */
+    public interface Operation {
+        /**
+         * @param i the number of the invocation, to vary the input
+         * @return anything derived from the work done
+         */
+        Object run(int i) throws Exception;
+    }
+
+    private Benchmark() {
+    }
+
+    /**
+     * Runs the operation once for warm-up, then again while timing it.
+     *
+     * @return the average time of an invocation in nanoseconds
+     */
+    public static double nanosPerOperation(int iterations, Operation operation) throws Exception {
+        repeat(iterations, operation);
+        long start = System.nanoTime();
+        repeat(iterations, operation);
+        return (System.nanoTime() - start) / (double) iterations;
+    }
+
+    /**
+     * Runs the operation once for warm-up, then again while counting what the thread allocates.
+     *
+     * @return the average bytes allocated by an invocation, or -1 if the JVM does not count them
+     */
+    public static double bytesPerOperation(int iterations, Operation operation) throws Exception {
+        repeat(iterations, operation);
+        long before = allocatedBytes();
+        if (before < 0) {
+            return -1;
+        }
+        repeat(iterations, operation);
+        return (allocatedBytes() - before) / (double) iterations;
+    }
+
+    /**
+     * @return the bytes allocated by the current thread so far, or -1 if the JVM does not count them
+     */
+    public static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        com.sun.management.ThreadMXBean counting = (com.sun.management.ThreadMXBean) threads;
+        return counting.isThreadAllocatedMemorySupported() && counting.isThreadAllocatedMemoryEnabled() ?
+                counting.getThreadAllocatedBytes(Thread.currentThread().getId()) : -1;
+    }
+
+    /**
+     * @return the heap in use after collecting garbage, compare it before and after building
+     * something to find what it retains
+     */
+    public static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        //A single gc() is a hint, repeat until it frees nothing more
+        for (int i = 0; i < 10; i++) {
+            System.gc();
+            long now = runtime.totalMemory() - runtime.freeMemory();
+            if (now >= used) {
+                break;
+            }
+            used = now;
+        }
+        return used;
+    }
+
+    public static void keep(Object value) {
+        sink = value;
+    }
+
+    public static void report(String format, Object... args) {
+        System.out.println(String.format(Locale.ROOT, format, args));
+    }
+
+    private static void repeat(int iterations, Operation operation) throws Exception {
+        for (int i = 0; i < iterations; i++) {
+            sink = operation.run(i);
+        }
+    }
+}
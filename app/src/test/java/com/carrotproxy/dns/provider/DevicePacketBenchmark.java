@@ -0,0 +1,124 @@
+package com.carrotproxy.dns.provider;
+
+import com.carrotproxy.dns.Benchmark;
+import org.junit.Test;
+import org.pcap4j.packet.IpPacket;
+import org.pcap4j.packet.IpSelector;
+import org.pcap4j.packet.IpV4Packet;
+import org.pcap4j.packet.IpV6Packet;
+import org.pcap4j.packet.UdpPacket;
+import org.pcap4j.packet.UnknownPacket;
+
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Daedalus Project
+ *
+ * @author iTX Technologies
+ * @link https://itxtech.org
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Time and allocations to take a query from the device read buffer and build the packet of its
+ * response, with {@link DevicePacket} and with the pcap4j parsing and builders it replaced.
+ */
+public class DevicePacketBenchmark {
+    private static final int ITERATIONS = 200000;
+    // pcap4j decodes the payloads of port 53 as DNS, so both have to be well formed
+    private static final String QUESTION = "\7example\3com\0\0\1\0\1";
+
+    private final byte[] readBuffer = new byte[32767];
+    private final byte[] answer = answer();
+
+    @Test
+    public void ipv4() throws Exception {
+        compare("IPv4", DevicePacketTest.ipv4(0, 0x4000, DevicePacketTest.PROTOCOL_UDP, TlsConnectionTest.query(0x1234, QUESTION)));
+    }
+
+    @Test
+    public void ipv6() throws Exception {
+        compare("IPv6", DevicePacketTest.ipv6(DevicePacketTest.PROTOCOL_UDP, TlsConnectionTest.query(0x1234, QUESTION)));
+    }
+
+    private void compare(String name, byte[] packet) throws Exception {
+        int length = packet.length;
+        System.arraycopy(packet, 0, readBuffer, 0, length);
+        //Both must build the same packet
+        assertArrayEquals(pcap4j(length), codec(length));
+
+        double pcap4jNanos = Benchmark.nanosPerOperation(ITERATIONS, i -> pcap4j(length));
+        double codecNanos = Benchmark.nanosPerOperation(ITERATIONS, i -> codec(length));
+        double pcap4jBytes = Benchmark.bytesPerOperation(ITERATIONS, i -> pcap4j(length));
+        double codecBytes = Benchmark.bytesPerOperation(ITERATIONS, i -> codec(length));
+        Benchmark.report("%s query to response: pcap4j %.0f ns %.0f bytes, DevicePacket %.0f ns %.0f bytes per packet",
+                name, pcap4jNanos, pcap4jBytes, codecNanos, codecBytes);
+    }
+
+    /**
+     * @return the query with an A record for the name appended
+     */
+    private static byte[] answer() {
+        byte[] query = TlsConnectionTest.query(0x1234, QUESTION);
+        byte[] answer = Arrays.copyOf(query, query.length + 16);
+        answer[2] = (byte) 0x81;
+        answer[3] = (byte) 0x80;
+        answer[7] = 1;
+        byte[] record = {(byte) 0xC0, 12, 0, 1, 0, 1, 0, 0, 0, 64, 0, 4, 0, 0, 0, 0};
+        System.arraycopy(record, 0, answer, query.length, record.length);
+        return answer;
+    }
+
+    private byte[] codec(int length) {
+        DevicePacket parsed = DevicePacket.parse(readBuffer, length);
+        parsed.takePayload();
+        byte[] response = new byte[parsed.getResponseLength(answer.length)];
+        parsed.writeResponse(answer, response);
+        parsed.release();
+        return response;
+    }
+
+    /**
+     * The path of the provider before DevicePacket, copying the read and building the response
+     * through pcap4j with corrected lengths and checksums.
+     */
+    private byte[] pcap4j(int length) throws Exception {
+        byte[] read = Arrays.copyOfRange(readBuffer, 0, length);
+        IpPacket request = (IpPacket) IpSelector.newPacket(read, 0, read.length);
+        UdpPacket udp = (UdpPacket) request.getPayload();
+        Benchmark.keep(udp.getPayload().getRawData());
+
+        UdpPacket.Builder udpBuilder = new UdpPacket.Builder(udp)
+                .srcPort(udp.getHeader().getDstPort())
+                .dstPort(udp.getHeader().getSrcPort())
+                .srcAddr(request.getHeader().getDstAddr())
+                .dstAddr(request.getHeader().getSrcAddr())
+                .correctChecksumAtBuild(true)
+                .correctLengthAtBuild(true)
+                .payloadBuilder(new UnknownPacket.Builder().rawData(answer));
+        IpPacket response;
+        if (request instanceof IpV4Packet) {
+            response = new IpV4Packet.Builder((IpV4Packet) request)
+                    .srcAddr((Inet4Address) request.getHeader().getDstAddr())
+                    .dstAddr((Inet4Address) request.getHeader().getSrcAddr())
+                    .correctChecksumAtBuild(true)
+                    .correctLengthAtBuild(true)
+                    .payloadBuilder(udpBuilder)
+                    .build();
+        } else {
+            response = new IpV6Packet.Builder((IpV6Packet) request)
+                    .srcAddr((Inet6Address) request.getHeader().getDstAddr())
+                    .dstAddr((Inet6Address) request.getHeader().getSrcAddr())
+                    .correctLengthAtBuild(true)
+                    .payloadBuilder(udpBuilder)
+                    .build();
+        }
+        return response.getRawData();
+    }
+}
@@ -0,0 +1,352 @@
+package com.carrotproxy.dns.provider;
+
+import com.carrotproxy.dns.Benchmark;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Daedalus Project
+ *
+ * @author iTX Technologies
+ * @link https://itxtech.org
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Packets are built and checked byte by byte here, so the codec is tested against the wire
+ * format rather than against itself.
+ */
+public class DevicePacketTest {
+    private static final byte[] CLIENT_V4 = {10, 0, 0, 2};
+    private static final byte[] SERVER_V4 = {(byte) 192, 0, 2, 53};
+    private static final byte[] CLIENT_V6 = address6(0x02);
+    private static final byte[] SERVER_V6 = address6(0x53);
+    private static final int CLIENT_PORT = 50123;
+    private static final int SERVER_PORT = 53;
+    private static final int PROTOCOL_TCP = 6;
+    static final int PROTOCOL_UDP = 17;
+
+    // Shared like the provider's, every parse overwrites it afterwards
+    private final byte[] readBuffer = new byte[32767];
+
+    @Test
+    public void parsesIpv4() throws Exception {
+        byte[] payload = payload(29);
+        byte[] packet = ipv4(0, 0x4000, PROTOCOL_UDP, payload);
+        DevicePacket parsed = parse(packet, packet.length);
+
+        assertNotNull(parsed);
+        assertEquals(InetAddress.getByAddress(SERVER_V4), parsed.getDestinationAddress());
+        assertEquals(payload.length, parsed.getPayloadLength());
+        assertArrayEquals(payload, parsed.takePayload());
+        assertEquals(20 + 8 + 40, parsed.getResponseLength(40));
+    }
+
+    @Test
+    public void parsesIpv4WithOptions() throws Exception {
+        byte[] payload = payload(33);
+        byte[] packet = ipv4(8, 0, PROTOCOL_UDP, payload);
+        DevicePacket parsed = parse(packet, packet.length);
+
+        assertNotNull(parsed);
+        assertArrayEquals(payload, parsed.takePayload());
+        assertEquals(28 + 8 + 12, parsed.getResponseLength(12));
+    }
+
+    @Test
+    public void parsesIpv6() throws Exception {
+        byte[] payload = payload(41);
+        byte[] packet = ipv6(PROTOCOL_UDP, payload);
+        DevicePacket parsed = parse(packet, packet.length);
+
+        assertNotNull(parsed);
+        assertEquals(InetAddress.getByAddress(SERVER_V6), parsed.getDestinationAddress());
+        assertArrayEquals(payload, parsed.takePayload());
+        assertEquals(40 + 8 + 12, parsed.getResponseLength(12));
+    }
+
+    @Test
+    public void ignoresBytesPastTheIpLength() {
+        byte[] payload = payload(12);
+        byte[] packet = Arrays.copyOf(ipv4(0, 0, PROTOCOL_UDP, payload), 20 + 8 + 12 + 6);
+        DevicePacket parsed = parse(packet, packet.length);
+
+        assertNotNull(parsed);
+        assertArrayEquals(payload, parsed.takePayload());
+    }
+
+    @Test
+    public void dropsFragments() {
+        //More fragments
+        byte[] first = ipv4(0, 0x2000, PROTOCOL_UDP, payload(16));
+        assertNull(parse(first, first.length));
+        //Fragment offset
+        byte[] last = ipv4(0, 0x0001, PROTOCOL_UDP, payload(16));
+        assertNull(parse(last, last.length));
+    }
+
+    @Test
+    public void dropsOtherProtocols() {
+        byte[] tcp4 = ipv4(0, 0, PROTOCOL_TCP, payload(16));
+        assertNull(parse(tcp4, tcp4.length));
+        byte[] tcp6 = ipv6(PROTOCOL_TCP, payload(16));
+        assertNull(parse(tcp6, tcp6.length));
+        byte[] unknown = ipv4(0, 0, PROTOCOL_UDP, payload(16));
+        unknown[0] = 0x55;
+        assertNull(parse(unknown, unknown.length));
+    }
+
+    @Test
+    public void dropsTruncatedPackets() {
+        byte[] packet4 = ipv4(0, 0, PROTOCOL_UDP, payload(16));
+        for (int length = 0; length < packet4.length; length++) {
+            assertNull("IPv4 cut at " + length, parse(packet4, length));
+        }
+        byte[] packet6 = ipv6(PROTOCOL_UDP, payload(16));
+        for (int length = 0; length < packet6.length; length++) {
+            assertNull("IPv6 cut at " + length, parse(packet6, length));
+        }
+        //A header length below the minimum
+        byte[] shortHeader = ipv4(0, 0, PROTOCOL_UDP, payload(16));
+        shortHeader[0] = 0x44;
+        assertNull(parse(shortHeader, shortHeader.length));
+        //No room for the UDP header within the IP length
+        byte[] noUdp = ipv4(0, 0, PROTOCOL_UDP, payload(16));
+        writeShort(noUdp, 2, 24);
+        assertNull(parse(noUdp, noUdp.length));
+    }
+
+    @Test
+    public void dropsBadUdpLengths() {
+        byte[] tooShort4 = ipv4(0, 0, PROTOCOL_UDP, payload(16));
+        writeShort(tooShort4, 20 + 4, 7);
+        assertNull(parse(tooShort4, tooShort4.length));
+        byte[] tooLong4 = ipv4(0, 0, PROTOCOL_UDP, payload(16));
+        writeShort(tooLong4, 20 + 4, 8 + 17);
+        assertNull(parse(tooLong4, tooLong4.length));
+        byte[] tooLong6 = ipv6(PROTOCOL_UDP, payload(16));
+        writeShort(tooLong6, 40 + 4, 8 + 17);
+        assertNull(parse(tooLong6, tooLong6.length));
+
+        //An empty payload is still a datagram
+        byte[] empty = ipv4(0, 0, PROTOCOL_UDP, payload(0));
+        DevicePacket parsed = parse(empty, empty.length);
+        assertNotNull(parsed);
+        assertEquals(0, parsed.getPayloadLength());
+    }
+
+    @Test
+    public void writesIpv4Responses() {
+        for (int options = 0; options <= 40; options += 4) {
+            //Odd and even payloads, shorter and longer than the query
+            for (int length : new int[]{0, 1, 16, 99, 512, 1201}) {
+                byte[] packet = ipv4(options, 0x4000, PROTOCOL_UDP, payload(24));
+                DevicePacket parsed = parse(packet, packet.length);
+                byte[] payload = payload(length);
+                byte[] response = respond(parsed, payload);
+                int headerLength = 20 + options;
+
+                assertEquals(0x45 + options / 4, response[0] & 0xFF);
+                assertEquals(headerLength + 8 + length, readShort(response, 2));
+                assertEquals(PROTOCOL_UDP, response[9]);
+                assertEquals(0, verify(response, 0, headerLength));
+                assertArrayEquals(SERVER_V4, Arrays.copyOfRange(response, 12, 16));
+                assertArrayEquals(CLIENT_V4, Arrays.copyOfRange(response, 16, 20));
+                //Options are sent back as they came
+                assertArrayEquals(Arrays.copyOfRange(packet, 20, headerLength),
+                        Arrays.copyOfRange(response, 20, headerLength));
+                assertUdp(response, headerLength, payload);
+                assertEquals(0, checksum(response, 12, 8, headerLength, length));
+                parsed.release();
+            }
+        }
+    }
+
+    @Test
+    public void writesIpv6Responses() {
+        for (int length : new int[]{0, 1, 16, 99, 512, 1201}) {
+            byte[] packet = ipv6(PROTOCOL_UDP, payload(24));
+            DevicePacket parsed = parse(packet, packet.length);
+            byte[] payload = payload(length);
+            byte[] response = respond(parsed, payload);
+
+            assertEquals(0x60, response[0] & 0xF0);
+            assertEquals(8 + length, readShort(response, 4));
+            assertEquals(PROTOCOL_UDP, response[6]);
+            assertArrayEquals(SERVER_V6, Arrays.copyOfRange(response, 8, 24));
+            assertArrayEquals(CLIENT_V6, Arrays.copyOfRange(response, 24, 40));
+            assertUdp(response, 40, payload);
+            assertEquals(0, checksum(response, 8, 32, 40, length));
+            parsed.release();
+        }
+    }
+
+    @Test
+    public void handsOverThePayloadOnce() {
+        byte[] payload = payload(16);
+        byte[] packet = ipv4(0, 0, PROTOCOL_UDP, payload);
+        DevicePacket parsed = parse(packet, packet.length);
+
+        assertArrayEquals(payload, parsed.takePayload());
+        assertNull(parsed.takePayload());
+        assertEquals(payload.length, parsed.getPayloadLength());
+        assertFalse(parsed.isReleased());
+        parsed.release();
+        parsed.release();
+        assertTrue(parsed.isReleased());
+    }
+
+    @Test
+    public void allocatesOnlyTheCopies() throws Exception {
+        byte[] packet = ipv4(0, 0, PROTOCOL_UDP, payload(29));
+        byte[] answer = payload(45);
+        System.arraycopy(packet, 0, readBuffer, 0, packet.length);
+        double bytes = Benchmark.bytesPerOperation(10000, i -> {
+            DevicePacket parsed = DevicePacket.parse(readBuffer, packet.length);
+            parsed.takePayload();
+            byte[] response = new byte[parsed.getResponseLength(answer.length)];
+            parsed.writeResponse(answer, response);
+            parsed.release();
+            return response;
+        });
+        //The headers, payload and response arrays and the packet itself, about 250 bytes
+        if (bytes >= 0) {
+            assertTrue(bytes + " bytes per packet", bytes < 512);
+        }
+    }
+
+    private DevicePacket parse(byte[] packet, int length) {
+        System.arraycopy(packet, 0, readBuffer, 0, length);
+        DevicePacket parsed = DevicePacket.parse(readBuffer, length);
+        //The next read reuses the buffer, the packet must not depend on it
+        Arrays.fill(readBuffer, (byte) 0x5A);
+        return parsed;
+    }
+
+    private static byte[] respond(DevicePacket packet, byte[] payload) {
+        byte[] response = new byte[packet.getResponseLength(payload.length)];
+        //Every byte of the response must be written
+        Arrays.fill(response, (byte) 0xA5);
+        packet.writeResponse(payload, response);
+        return response;
+    }
+
+    private static void assertUdp(byte[] response, int offset, byte[] payload) {
+        assertEquals(SERVER_PORT, readShort(response, offset));
+        assertEquals(CLIENT_PORT, readShort(response, offset + 2));
+        assertEquals(8 + payload.length, readShort(response, offset + 4));
+        //Zero means no checksum, a computed zero is sent as all ones
+        assertTrue(readShort(response, offset + 6) != 0);
+        assertArrayEquals(payload, Arrays.copyOfRange(response, offset + 8, response.length));
+    }
+
+    /**
+     * @return the UDP checksum over the pseudo header and datagram, 0 if the stored one is right
+     */
+    private static int checksum(byte[] packet, int addresses, int addressLength, int udpOffset, int payloadLength) {
+        int udpLength = 8 + payloadLength;
+        int sum = sum(packet, addresses, addressLength) + PROTOCOL_UDP + udpLength + sum(packet, udpOffset, udpLength);
+        return ~fold(sum) & 0xFFFF;
+    }
+
+    /**
+     * @return the complemented one's complement sum, 0 for a range holding a valid checksum
+     */
+    private static int verify(byte[] data, int offset, int length) {
+        return ~fold(sum(data, offset, length)) & 0xFFFF;
+    }
+
+    private static int sum(byte[] data, int offset, int length) {
+        int sum = 0;
+        for (int i = 0; i < length; i++) {
+            sum += (data[offset + i] & 0xFF) << ((i & 1) == 0 ? 8 : 0);
+        }
+        return sum;
+    }
+
+    private static int fold(int sum) {
+        while ((sum >>> 16) != 0) {
+            sum = (sum & 0xFFFF) + (sum >>> 16);
+        }
+        return sum;
+    }
+
+    static byte[] ipv4(int options, int fragment, int protocol, byte[] payload) {
+        int headerLength = 20 + options;
+        byte[] packet = new byte[headerLength + 8 + payload.length];
+        packet[0] = (byte) (0x40 | headerLength / 4);
+        writeShort(packet, 2, packet.length);
+        writeShort(packet, 4, 0x1234);
+        writeShort(packet, 6, fragment);
+        packet[8] = 64;
+        packet[9] = (byte) protocol;
+        System.arraycopy(CLIENT_V4, 0, packet, 12, 4);
+        System.arraycopy(SERVER_V4, 0, packet, 16, 4);
+        for (int i = 20; i < headerLength; i++) {
+            //Record route style option bytes, any content has to survive the copy
+            packet[i] = (byte) (7 + i);
+        }
+        writeShort(packet, 10, ~fold(sum(packet, 0, headerLength)) & 0xFFFF);
+        writeUdp(packet, headerLength, payload);
+        return packet;
+    }
+
+    static byte[] ipv6(int nextHeader, byte[] payload) {
+        byte[] packet = new byte[40 + 8 + payload.length];
+        packet[0] = 0x60;
+        writeShort(packet, 4, 8 + payload.length);
+        packet[6] = (byte) nextHeader;
+        packet[7] = 64;
+        System.arraycopy(CLIENT_V6, 0, packet, 8, 16);
+        System.arraycopy(SERVER_V6, 0, packet, 24, 16);
+        writeUdp(packet, 40, payload);
+        return packet;
+    }
+
+    private static void writeUdp(byte[] packet, int offset, byte[] payload) {
+        writeShort(packet, offset, CLIENT_PORT);
+        writeShort(packet, offset + 2, SERVER_PORT);
+        writeShort(packet, offset + 4, 8 + payload.length);
+        //The codec does not check request checksums, any value will do
+        writeShort(packet, offset + 6, 0xBEEF);
+        System.arraycopy(payload, 0, packet, offset + 8, payload.length);
+    }
+
+    static byte[] payload(int length) {
+        byte[] payload = new byte[length];
+        for (int i = 0; i < length; i++) {
+            payload[i] = (byte) (i * 31 + 7);
+        }
+        return payload;
+    }
+
+    private static byte[] address6(int last) {
+        byte[] address = new byte[16];
+        address[0] = 0x20;
+        address[1] = 0x01;
+        address[2] = 0x0D;
+        address[3] = (byte) 0xB8;
+        address[15] = (byte) last;
+        return address;
+    }
+
+    private static int readShort(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+    }
+
+    private static void writeShort(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >> 8);
+        data[offset + 1] = (byte) value;
+    }
+}
@@ -0,0 +1,218 @@
+package com.carrotproxy.dns.provider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.net.ssl.SSLEngine;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Daedalus Project
+ *
+ * @author iTX Technologies
+ * @link https://itxtech.org
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Upstreams that never answer must neither block the caller nor keep a connection forever.
+ */
+public class TcpConnectionTest {
+    private final ArrayList<Selector> selectors = new ArrayList<>();
+    private final ArrayList<AutoCloseable> resources = new ArrayList<>();
+    private final ArrayList<byte[]> responses = new ArrayList<>();
+    private final ArrayList<TcpConnection.Query> unanswered = new ArrayList<>();
+    private final TcpConnection.Listener listener = new TcpConnection.Listener() {
+        @Override
+        public void onResponse(TcpConnection connection, TcpConnection.Query query, byte[] response) {
+            responses.add(response);
+        }
+
+        @Override
+        public void onClosed(TcpConnection connection, ArrayList<TcpConnection.Query> queries) {
+            unanswered.addAll(queries);
+        }
+    };
+    private Selector selector;
+
+    @Before
+    public void setUp() throws IOException {
+        selector = Selector.open();
+        resources.add(selector);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (AutoCloseable resource : resources) {
+            resource.close();
+        }
+    }
+
+    @Test
+    public void pendingConnectExpiresAfterConnectTimeout() throws Exception {
+        SocketChannel channel = openPendingChannel();
+        InetSocketAddress address = (InetSocketAddress) channel.getRemoteAddress();
+        long before = System.currentTimeMillis();
+        TcpConnection connection = new TcpConnection(address, null, channel, listener);
+        long after = System.currentTimeMillis();
+        assertTrue(connection.isConnecting());
+
+        //Queries are queued without waiting for the connect
+        connection.send(new TcpConnection.Query(null, TlsConnectionTest.query(7, "pending")));
+        assertTrue(System.currentTimeMillis() - after < 1000);
+
+        long deadline = connection.nextDeadline();
+        assertTrue(deadline >= before + TcpConnection.CONNECT_TIMEOUT);
+        assertTrue(deadline <= after + TcpConnection.CONNECT_TIMEOUT);
+        assertFalse(connection.expire(System.currentTimeMillis()));
+        assertFalse(connection.expire(deadline));
+        assertTrue(connection.expire(deadline + 1));
+
+        connection.close();
+        assertEquals(1, unanswered.size());
+        assertFalse(channel.isOpen());
+    }
+
+    @Test
+    public void silentTlsServerExpiresAfterConnectTimeout() throws Exception {
+        TlsStubServer silent = new TlsStubServer(true);
+        resources.add(silent);
+        long before = System.currentTimeMillis();
+        TlsConnection connection = open(silent, silent.createEngine());
+        connection.send(new TcpConnection.Query(null, TlsConnectionTest.query(7, "silent")));
+
+        int wakeups = drive(300, connection);
+        assertTrue("The client hello was not sent", silent.bytesReceived.get() > 0);
+        assertTrue("Busy loop with " + wakeups + " wake-ups", wakeups < 20);
+        assertFalse(connection.isConnecting());
+        assertTrue(connection.isEstablishing());
+
+        long deadline = connection.nextDeadline();
+        assertTrue(deadline >= before + TcpConnection.CONNECT_TIMEOUT);
+        assertTrue(deadline <= before + TcpConnection.CONNECT_TIMEOUT + 1000);
+        assertFalse(connection.expire(System.currentTimeMillis()));
+        assertTrue(connection.expire(deadline + 1));
+        connection.close();
+        assertEquals(1, unanswered.size());
+    }
+
+    @Test
+    public void queriesAreAnsweredWhileAnotherUpstreamHangs() throws Exception {
+        TlsStubServer silent = new TlsStubServer(true);
+        TlsStubServer server = new TlsStubServer(false);
+        resources.add(silent);
+        resources.add(server);
+        SocketChannel channel = openPendingChannel();
+        TcpConnection pending = new TcpConnection((InetSocketAddress) channel.getRemoteAddress(), null, channel, listener);
+        TlsConnection hanging = open(silent, silent.createEngine());
+        TlsConnection working = open(server, server.createEngine());
+        pending.send(new TcpConnection.Query(null, TlsConnectionTest.query(1, "pending")));
+        hanging.send(new TcpConnection.Query(null, TlsConnectionTest.query(2, "hanging")));
+        for (int i = 0; i < 5; i++) {
+            working.send(new TcpConnection.Query(null, TlsConnectionTest.query(10 + i, "working")));
+        }
+
+        long start = System.currentTimeMillis();
+        while (responses.size() < 5 && System.currentTimeMillis() - start < 5000) {
+            drive(50, pending, hanging, working);
+        }
+        assertEquals(5, responses.size());
+        assertTrue(pending.isConnecting());
+        assertTrue(hanging.isEstablishing());
+        pending.close();
+        hanging.close();
+        working.close();
+    }
+
+    private TlsConnection open(TlsStubServer server, SSLEngine engine) throws IOException {
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort());
+        SocketChannel channel = SocketChannel.open();
+        resources.add(channel);
+        channel.configureBlocking(false);
+        channel.connect(address);
+        return new TlsConnection(address, null, channel, listener, engine);
+    }
+
+    /**
+     * A listener that never accepts, with a full backlog, drops further SYNs so a connect to it
+     * stays pending.
+     */
+    private SocketChannel openPendingChannel() throws IOException {
+        ServerSocketChannel listening = ServerSocketChannel.open();
+        resources.add(listening);
+        listening.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1);
+        Selector probe = Selector.open();
+        resources.add(probe);
+        for (int i = 0; i < 16; i++) {
+            SocketChannel channel = SocketChannel.open();
+            resources.add(channel);
+            channel.configureBlocking(false);
+            if (channel.connect(listening.getLocalAddress())) {
+                continue;
+            }
+            SelectionKey key = channel.register(probe, SelectionKey.OP_CONNECT);
+            if (probe.select(200) == 0) {
+                key.cancel();
+                probe.selectNow();
+                return channel;
+            }
+            probe.selectedKeys().clear();
+            key.cancel();
+            probe.selectNow();
+            channel.finishConnect();
+        }
+        fail("No connect stayed pending");
+        return null;
+    }
+
+    /**
+     * Waits for the events the connections ask for, like the provider loop, for a while.
+     *
+     * @return the number of wake-ups
+     */
+    private int drive(long duration, TcpConnection... connections) throws IOException {
+        int wakeups = 0;
+        long end = System.currentTimeMillis() + duration;
+        long remaining;
+        while ((remaining = end - System.currentTimeMillis()) > 0) {
+            for (TcpConnection connection : connections) {
+                SelectionKey key = connection.channel.keyFor(selector);
+                if (key == null) {
+                    key = connection.channel.register(selector, 0, connection);
+                }
+                if (connection.isConnecting()) {
+                    key.interestOps(SelectionKey.OP_CONNECT);
+                } else {
+                    key.interestOps(SelectionKey.OP_READ | (connection.wantsWrite() ? SelectionKey.OP_WRITE : 0));
+                }
+            }
+            if (selector.select(remaining) == 0) {
+                continue;
+            }
+            wakeups++;
+            for (SelectionKey key : selector.selectedKeys()) {
+                int ready = key.readyOps();
+                ((TcpConnection) key.attachment()).handleEvents(
+                        (ready & (SelectionKey.OP_CONNECT | SelectionKey.OP_WRITE)) != 0,
+                        (ready & SelectionKey.OP_READ) != 0);
+            }
+            selector.selectedKeys().clear();
+        }
+        return wakeups;
+    }
+}
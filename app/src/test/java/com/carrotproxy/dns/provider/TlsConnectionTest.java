@@ -0,0 +1,209 @@
+package com.carrotproxy.dns.provider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.net.ssl.SSLEngine;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Daedalus Project
+ *
+ * @author iTX Technologies
+ * @link https://itxtech.org
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Drives {@link TlsConnection} against {@link TlsStubServer} the way the provider loop does,
+ * waiting only for the events the connection asks for.
+ */
+public class TlsConnectionTest {
+    // A handshake and a few queries take a handful of wake-ups, a busy loop takes thousands
+    private static final int MAX_WAKEUPS = 100;
+
+    private TlsStubServer server;
+    private Selector selector;
+    private final ArrayList<byte[]> responses = new ArrayList<>();
+    private final TcpConnection.Listener listener = new TcpConnection.Listener() {
+        @Override
+        public void onResponse(TcpConnection connection, TcpConnection.Query query, byte[] response) {
+            responses.add(response);
+        }
+
+        @Override
+        public void onClosed(TcpConnection connection, ArrayList<TcpConnection.Query> unanswered) {
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        server = new TlsStubServer(false);
+        selector = Selector.open();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        selector.close();
+        server.close();
+    }
+
+    @Test
+    public void answersQueriesQueuedBeforeTheHandshake() throws Exception {
+        TlsConnection connection = open(server.createEngine());
+        byte[][] queries = {query(0x1234, "a"), query(0x1234, "bb"), query(0xBEEF, "ccc")};
+        for (byte[] query : queries) {
+            connection.send(new TcpConnection.Query(null, query));
+        }
+        int wakeups = drive(connection, queries.length);
+
+        assertEquals(queries.length, responses.size());
+        for (int i = 0; i < queries.length; i++) {
+            //The echo carries the ID used on the connection, the client must see its own again
+            assertArrayEquals(queries[i], responses.get(i));
+        }
+        int sent = 0;
+        for (byte[] query : queries) {
+            sent += 2 + query.length;
+        }
+        assertEquals(sent, server.bytesReceived.get());
+        assertEquals(1, server.handshakes.get());
+        assertTrue("Busy loop with " + wakeups + " wake-ups", wakeups < MAX_WAKEUPS);
+        assertFalse(connection.wantsWrite());
+        connection.close();
+    }
+
+    @Test
+    public void pipelinesQueriesOnOneConnection() throws Exception {
+        TlsConnection connection = open(server.createEngine());
+        connection.send(new TcpConnection.Query(null, query(1, "first")));
+        drive(connection, 1);
+        for (int i = 0; i < 10; i++) {
+            connection.send(new TcpConnection.Query(null, query(100 + i, "next")));
+        }
+        int wakeups = drive(connection, 11);
+
+        assertEquals(11, responses.size());
+        assertEquals(1, server.connections.get());
+        assertEquals(1, server.handshakes.get());
+        assertTrue("Busy loop with " + wakeups + " wake-ups", wakeups < MAX_WAKEUPS);
+        connection.close();
+    }
+
+    @Test
+    public void resumesTheSessionOnReconnect() throws Exception {
+        SSLEngine first = server.createEngine();
+        first.setEnabledProtocols(new String[]{"TLSv1.2"});
+        TlsConnection connection = open(first);
+        connection.send(new TcpConnection.Query(null, query(1, "first")));
+        drive(connection, 1);
+        connection.close();
+
+        SSLEngine second = server.createEngine();
+        second.setEnabledProtocols(new String[]{"TLSv1.2"});
+        connection = open(second);
+        connection.send(new TcpConnection.Query(null, query(2, "second")));
+        drive(connection, 2);
+        connection.close();
+
+        assertEquals(2, responses.size());
+        assertEquals(2, server.sessionIds.size());
+        assertTrue("Session not resumed", Arrays.equals(server.sessionIds.get(0), server.sessionIds.get(1)));
+    }
+
+    @Test
+    public void acceptsTheCertificateOfTheServerName() throws Exception {
+        SSLEngine engine = server.createEngine();
+        TlsProvider.setServerName(engine, "localhost");
+        TlsConnection connection = open(engine);
+        connection.send(new TcpConnection.Query(null, query(1, "first")));
+        drive(connection, 1);
+
+        assertEquals(1, responses.size());
+        connection.close();
+    }
+
+    @Test
+    public void rejectsTheCertificateOfAnotherName() throws Exception {
+        //Trusted, but issued for localhost only
+        SSLEngine engine = server.createEngine("dns.example.com");
+        TlsProvider.setServerName(engine, "dns.example.com");
+        TlsConnection connection = open(engine);
+        connection.send(new TcpConnection.Query(null, query(1, "first")));
+        drive(connection, 1);
+
+        assertFalse(connection.channel.isOpen());
+        assertEquals(0, responses.size());
+        assertEquals(0, server.bytesReceived.get());
+    }
+
+    private TlsConnection open(SSLEngine engine) throws IOException {
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort());
+        SocketChannel channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        channel.connect(address);
+        return new TlsConnection(address, null, channel, listener, engine);
+    }
+
+    /**
+     * Waits for the events the connection asks for, like the provider loop, until the expected
+     * number of responses has arrived.
+     *
+     * @return the number of wake-ups it took
+     */
+    private int drive(TcpConnection connection, int expected) throws IOException {
+        SelectionKey key = connection.channel.keyFor(selector);
+        if (key == null) {
+            key = connection.channel.register(selector, 0);
+        }
+        int wakeups = 0;
+        long deadline = System.currentTimeMillis() + 5000;
+        while (responses.size() < expected && connection.channel.isOpen()) {
+            assertTrue("Timed out with " + responses.size() + " responses", System.currentTimeMillis() < deadline);
+            assertTrue("Busy loop", wakeups < 10 * MAX_WAKEUPS);
+            if (connection.isConnecting()) {
+                key.interestOps(SelectionKey.OP_CONNECT);
+            } else {
+                key.interestOps(SelectionKey.OP_READ | (connection.wantsWrite() ? SelectionKey.OP_WRITE : 0));
+            }
+            if (selector.select(100) == 0) {
+                continue;
+            }
+            selector.selectedKeys().clear();
+            wakeups++;
+            int ready = key.readyOps();
+            connection.handleEvents((ready & (SelectionKey.OP_CONNECT | SelectionKey.OP_WRITE)) != 0,
+                    (ready & SelectionKey.OP_READ) != 0);
+        }
+        return wakeups;
+    }
+
+    /**
+     * @return a minimal query, a header with the ID followed by some question bytes
+     */
+    static byte[] query(int id, String name) {
+        byte[] query = new byte[12 + name.length()];
+        query[0] = (byte) (id >> 8);
+        query[1] = (byte) id;
+        query[5] = 1;
+        for (int i = 0; i < name.length(); i++) {
+            query[12 + i] = (byte) name.charAt(i);
+        }
+        return query;
+    }
+}
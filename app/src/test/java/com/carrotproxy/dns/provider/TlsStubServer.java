@@ -0,0 +1,147 @@
+package com.carrotproxy.dns.provider;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Daedalus Project
+ *
+ * @author iTX Technologies
+ * @link https://itxtech.org
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * A local DNS over TLS server with a self-signed certificate for localhost. It answers every
+ * query with the query itself, or in silent mode accepts connections and never answers.
+ */
+class TlsStubServer implements Closeable {
+    private static final char[] PASSWORD = "daedalus".toCharArray();
+
+    private final SSLContext clientContext;
+    private final ServerSocket serverSocket;
+    private final boolean silent;
+    private final List<Socket> sockets = Collections.synchronizedList(new ArrayList<>());
+    final AtomicInteger connections = new AtomicInteger();
+    final AtomicInteger handshakes = new AtomicInteger();
+    // Bytes of DNS frames received, or raw bytes in silent mode
+    final AtomicInteger bytesReceived = new AtomicInteger();
+    final List<byte[]> sessionIds = Collections.synchronizedList(new ArrayList<>());
+
+    TlsStubServer(boolean silent) throws Exception {
+        this.silent = silent;
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        try (InputStream stream = TlsStubServer.class.getResourceAsStream("/tls_stub.p12")) {
+            keyStore.load(stream, PASSWORD);
+        }
+        KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(keyStore, PASSWORD);
+        TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagers.init(keyStore);
+        SSLContext serverContext = SSLContext.getInstance("TLS");
+        serverContext.init(keyManagers.getKeyManagers(), null, null);
+        clientContext = SSLContext.getInstance("TLS");
+        clientContext.init(null, trustManagers.getTrustManagers(), null);
+
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        serverSocket = silent ? new ServerSocket(0, 50, loopback) :
+                serverContext.getServerSocketFactory().createServerSocket(0, 50, loopback);
+        Thread acceptor = new Thread(this::accept, "TlsStubServer");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * @return a client engine trusting the stub's certificate, engines share one session cache
+     */
+    SSLEngine createEngine() {
+        return createEngine("localhost");
+    }
+
+    /**
+     * @param host the name the client connects to, the certificate is only valid for localhost
+     */
+    SSLEngine createEngine(String host) {
+        SSLEngine engine = clientContext.createSSLEngine(host, getPort());
+        engine.setUseClientMode(true);
+        return engine;
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                return;
+            }
+            sockets.add(socket);
+            connections.incrementAndGet();
+            Thread worker = new Thread(() -> serve(socket), "TlsStubServer");
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            if (silent) {
+                byte[] buffer = new byte[4096];
+                int read;
+                while ((read = socket.getInputStream().read(buffer)) >= 0) {
+                    bytesReceived.addAndGet(read);
+                }
+                return;
+            }
+            SSLSocket tls = (SSLSocket) socket;
+            tls.startHandshake();
+            handshakes.incrementAndGet();
+            sessionIds.add(tls.getSession().getId());
+            DataInputStream input = new DataInputStream(tls.getInputStream());
+            DataOutputStream output = new DataOutputStream(tls.getOutputStream());
+            while (true) {
+                int length = input.readUnsignedShort();
+                byte[] query = new byte[length];
+                input.readFully(query);
+                bytesReceived.addAndGet(2 + length);
+                output.writeShort(length);
+                output.write(query);
+                output.flush();
+            }
+        } catch (IOException ignored) {
+            //The client closed the connection
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        synchronized (sockets) {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package com.carrotproxy.dns.provider;
+
+import com.carrotproxy.dns.Benchmark;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Daedalus Project
+ *
+ * @author iTX Technologies
+ * @link https://itxtech.org
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Queries per second against a local UDP echo server, with a socket opened and closed for
+ * every query as before, and with the pool of {@link UdpProvider}. The provider itself needs a
+ * VPN service, so both are driven here by a selector on plain channels the way the event loop
+ * polls the upstream sockets. Neither pays for VpnService.protect(), which the old path called
+ * once per query and the pool once per socket.
+ */
+public class UdpProviderBenchmark {
+    private static final int QUERIES = 50000;
+    private static final int IN_FLIGHT = 32;
+
+    private DatagramSocket echo;
+    private InetSocketAddress address;
+
+    @Before
+    public void setUp() throws IOException {
+        echo = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        address = new InetSocketAddress(InetAddress.getLoopbackAddress(), echo.getLocalPort());
+        Thread server = new Thread(() -> {
+            DatagramPacket packet = new DatagramPacket(new byte[512], 512);
+            try {
+                while (true) {
+                    packet.setLength(512);
+                    echo.receive(packet);
+                    echo.send(packet);
+                }
+            } catch (IOException ignored) {
+                //Closed by tearDown()
+            }
+        }, "UdpEcho");
+        server.setDaemon(true);
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        echo.close();
+    }
+
+    @Test
+    public void queriesPerSecond() throws IOException {
+        run(new SocketPerQuery(), QUERIES / 5);
+        double before = run(new SocketPerQuery(), QUERIES);
+        run(new SocketPool(), QUERIES / 5);
+        double after = run(new SocketPool(), QUERIES);
+        Benchmark.report("UDP upstream, %d in flight: socket per query %.0f queries/s, pool of %d sockets %.0f queries/s (x%.2f)",
+                IN_FLIGHT, before, UdpProvider.UPSTREAM_SOCKETS, after, after / before);
+    }
+
+    /**
+     * Keeps {@link #IN_FLIGHT} queries waiting until the given number has been answered.
+     *
+     * @return the answered queries per second
+     */
+    private double run(Upstream upstream, int queries) throws IOException {
+        byte[] query = TlsConnectionTest.query(0, "\7example\3com\0\0\1\0\1");
+        int sent = 0;
+        int answered = 0;
+        long start = System.nanoTime();
+        try (Selector selector = Selector.open()) {
+            for (; sent < IN_FLIGHT; sent++) {
+                upstream.send(selector, query, sent);
+            }
+            while (answered < queries) {
+                if (selector.select(1000) == 0) {
+                    throw new IOException("No answer after " + answered + " queries");
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    while (upstream.receive(key)) {
+                        answered++;
+                        if (sent < queries) {
+                            upstream.send(selector, query, sent++);
+                        }
+                    }
+                }
+            }
+        } finally {
+            upstream.close();
+        }
+        assertEquals(queries, sent);
+        return queries * 1e9 / (System.nanoTime() - start);
+    }
+
+    private interface Upstream {
+        void send(Selector selector, byte[] query, int id) throws IOException;
+
+        /**
+         * @return whether an answer was read from the channel of the key
+         */
+        boolean receive(SelectionKey key) throws IOException;
+
+        void close() throws IOException;
+    }
+
+    /**
+     * The path UdpProvider had before the pool, one socket opened and closed per query.
+     */
+    private class SocketPerQuery implements Upstream {
+        private final ByteBuffer buffer = ByteBuffer.allocate(512);
+
+        @Override
+        public void send(Selector selector, byte[] query, int id) throws IOException {
+            DatagramChannel channel = DatagramChannel.open();
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ);
+            channel.send(ByteBuffer.wrap(query), address);
+        }
+
+        @Override
+        public boolean receive(SelectionKey key) throws IOException {
+            DatagramChannel channel = (DatagramChannel) key.channel();
+            if (!channel.isOpen()) {
+                return false;
+            }
+            buffer.clear();
+            if (channel.receive(buffer) == null) {
+                return false;
+            }
+            channel.close();
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * The pool of UdpProvider: random long-lived sockets, rotated after a number of queries,
+     * with a random ID on each query that the answer is matched back by.
+     */
+    private class SocketPool implements Upstream {
+        private final SecureRandom random = new SecureRandom();
+        private final DatagramChannel[] sockets = new DatagramChannel[UdpProvider.UPSTREAM_SOCKETS];
+        private final int[] queries = new int[UdpProvider.UPSTREAM_SOCKETS];
+        private final HashMap<Integer, Pending> pending = new HashMap<>();
+        private final ByteBuffer buffer = ByteBuffer.allocate(512);
+
+        @Override
+        public void send(Selector selector, byte[] query, int id) throws IOException {
+            int slot = random.nextInt(sockets.length);
+            if (sockets[slot] != null && queries[slot] >= UdpProvider.ROTATE_AFTER_QUERIES) {
+                //The retired socket still answers the queries it has in flight
+                sockets[slot] = null;
+            }
+            if (sockets[slot] == null) {
+                sockets[slot] = DatagramChannel.open();
+                sockets[slot].configureBlocking(false);
+                sockets[slot].register(selector, SelectionKey.OP_READ, new int[1]);
+                queries[slot] = 0;
+            }
+            queries[slot]++;
+            DatagramChannel socket = sockets[slot];
+            int upstreamId;
+            do {
+                upstreamId = random.nextInt(0x10000);
+            } while (pending.containsKey(upstreamId));
+            byte[] packet = query.clone();
+            packet[0] = (byte) (upstreamId >> 8);
+            packet[1] = (byte) upstreamId;
+            pending.put(upstreamId, new Pending(socket, id));
+            ((int[]) socket.keyFor(selector).attachment())[0]++;
+            socket.send(ByteBuffer.wrap(packet), address);
+        }
+
+        @Override
+        public boolean receive(SelectionKey key) throws IOException {
+            DatagramChannel socket = (DatagramChannel) key.channel();
+            if (!socket.isOpen()) {
+                return false;
+            }
+            buffer.clear();
+            if (socket.receive(buffer) == null) {
+                return false;
+            }
+            byte[] data = buffer.array();
+            int upstreamId = ((data[0] & 0xFF) << 8) | (data[1] & 0xFF);
+            Pending query = pending.get(upstreamId);
+            if (query == null || query.socket != socket) {
+                throw new IOException("Unexpected answer " + upstreamId);
+            }
+            pending.remove(upstreamId);
+            byte[] answer = new byte[buffer.position()];
+            System.arraycopy(data, 0, answer, 0, answer.length);
+            answer[0] = (byte) (query.id >> 8);
+            answer[1] = (byte) query.id;
+            Benchmark.keep(answer);
+            int[] inFlight = (int[]) key.attachment();
+            if (--inFlight[0] == 0 && !isPooled(socket)) {
+                socket.close();
+            }
+            return true;
+        }
+
+        private boolean isPooled(DatagramChannel socket) {
+            for (DatagramChannel pooled : sockets) {
+                if (pooled == socket) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (DatagramChannel socket : sockets) {
+                if (socket != null) {
+                    socket.close();
+                }
+            }
+        }
+    }
+
+    private static class Pending {
+        final DatagramChannel socket;
+        final int id;
+
+        Pending(DatagramChannel socket, int id) {
+            this.socket = socket;
+            this.id = id;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.carrotproxy.dns.util;
+
+import com.carrotproxy.dns.Benchmark;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Daedalus Project
+ *
+ * @author iTX Technologies
+ * @link https://itxtech.org
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Time to match a hostname against 10 to 10000 regex and glob rules, through the automaton and
+ * by trying every rule in turn.
+ */
+public class PatternMatcherBenchmark {
+    private static final int NAMES = 4096;
+    // Of the automaton, trying every regex in turn runs fewer as the patterns grow
+    private static final int ITERATIONS = 200000;
+
+    @Test
+    public void matchTimeByPatternCount() throws Exception {
+        String[] names = new String[NAMES];
+        for (int i = 0; i < NAMES; i++) {
+            switch (i % 8) {
+                case 0:
+                    //Listed by a pattern, if there are enough of them
+                    names[i] = "ads" + i + ".w" + i % 10000 + ".example.com";
+                    break;
+                case 1:
+                    names[i] = "cdn" + i + ".t" + i + ".adnet.com";
+                    break;
+                default:
+                    names[i] = "www.site" + i + ".example" + i % 7 + ".org";
+                    break;
+            }
+        }
+        for (int count = 10; count <= 10000; count *= 10) {
+            ArrayList<String> expressions = new ArrayList<>();
+            ArrayList<Pattern> patterns = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                String expression = i % 3 == 0 ? "/^ads?[0-9]*\\.w" + i + "\\./" :
+                        i % 3 == 1 ? "*.t" + i + ".adnet.com" : "/^track[0-9]+\\.c" + i + "\\./";
+                expressions.add(expression);
+                patterns.add(Pattern.compile(PatternMatcherTest.toRegex(expression), Pattern.CASE_INSENSITIVE));
+            }
+            PatternMatcher matcher = PatternMatcher.compile(expressions);
+            int matched = 0;
+            for (String name : names) {
+                boolean expected = matchesAny(patterns, name);
+                assertEquals(name, expected, matcher.matches(name));
+                if (expected) {
+                    matched++;
+                }
+            }
+
+            double automaton = Benchmark.nanosPerOperation(ITERATIONS, i -> matcher.matches(names[i % NAMES]));
+            double inTurn = Benchmark.nanosPerOperation(ITERATIONS / count * 10,
+                    i -> matchesAny(patterns, names[i % NAMES]));
+            Benchmark.report("%5d patterns, %d of %d names matched: automaton %.0f ns, every regex in turn %.0f ns per name",
+                    count, matched, NAMES, automaton, inTurn);
+        }
+    }
+
+    private static boolean matchesAny(ArrayList<Pattern> patterns, String name) {
+        for (Pattern pattern : patterns) {
+            if (pattern.matcher(name).find()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
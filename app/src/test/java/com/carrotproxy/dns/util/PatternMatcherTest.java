@@ -0,0 +1,130 @@
+package com.carrotproxy.dns.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Daedalus Project
+ *
+ * @author iTX Technologies
+ * @link https://itxtech.org
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * The literal prefilter may only ever add candidates, a name the regex matches must never be
+ * rejected because the literal taken from the regex does not occur in it.
+ */
+public class PatternMatcherTest {
+    private static final String[] PATTERNS = {
+            "/^[0-9a-f]{32}\\./",
+            "/^ads?[0-9]*\\./",
+            "/^x{2}track\\d{1,3}er\\./",
+            "/^\\x61\\x64\\x73-\\u0062eacon\\./",
+            "/\\0141nalytics\\./",
+            "/^\\cJ?metrics\\./",
+            "/^\\p{Alpha}{3}\\.stats\\./",
+            "/^\\p{L}pixel\\./",
+            "/^(?<tag>tg)\\k<tag>\\./",
+            "/^\\Qa.b\\Etelemetry\\./",
+            "/^[\\]x]{2}banner\\./",
+            "/^[a-c[x-z]]{2}promo\\./",
+            "/^ab|^cd\\./",
+            "/(?i)^SPONSOR[0-9]{2}\\./",
+            "/^a{0}cdn\\./",
+            "*.doubleclick.net",
+            "ad?.example.com",
+    };
+
+    @Test
+    public void literalsSkipQuantifiersAndEscapes() {
+        assertNull(PatternMatcher.getLiteral("^[0-9a-f]{32}\\."));
+        assertEquals("ad", PatternMatcher.getLiteral("^ads?[0-9]*\\."));
+        assertEquals("yz", PatternMatcher.getLiteral("x{10,20}yz"));
+        assertEquals("bc", PatternMatcher.getLiteral("a{2}bc"));
+        assertEquals("dserver.", PatternMatcher.getLiteral("^\\x61dserver\\."));
+        assertEquals("dserver.", PatternMatcher.getLiteral("^\\x{61}dserver\\."));
+        assertEquals("track", PatternMatcher.getLiteral("track\\u0065r"));
+        assertEquals("nalytics", PatternMatcher.getLiteral("\\0141nalytics"));
+        assertEquals("foo", PatternMatcher.getLiteral("\\p{Alpha}+foo"));
+        assertEquals("cd", PatternMatcher.getLiteral("\\Qab.xyz\\Ecd"));
+        assertEquals("bc", PatternMatcher.getLiteral("[\\]a]bc"));
+        assertEquals("bc", PatternMatcher.getLiteral("[a[\\]]]bc"));
+        assertEquals("ads", PatternMatcher.getLiteral("(?i)ADS\\d{3}"));
+        assertNull(PatternMatcher.getLiteral("\\d{128}"));
+        assertNull(PatternMatcher.getLiteral("ab|cd"));
+    }
+
+    @Test
+    public void quantifierDigitsDoNotFilterMatches() {
+        PatternMatcher matcher = PatternMatcher.compile(new ArrayList<>(Arrays.asList("/^[0-9a-f]{32}\\./")));
+        assertTrue(matcher.matches("0123456789abcdef0123456789abcdef.example.com"));
+        assertEquals(1, matcher.getUnfilteredCount());
+    }
+
+    @Test
+    public void matchesLikeEveryRegexTriedInTurn() {
+        PatternMatcher matcher = PatternMatcher.compile(new ArrayList<>(Arrays.asList(PATTERNS)));
+        assertEquals(PATTERNS.length, matcher.size());
+        ArrayList<Pattern> patterns = new ArrayList<>();
+        for (String pattern : PATTERNS) {
+            patterns.add(Pattern.compile(toRegex(pattern), Pattern.CASE_INSENSITIVE));
+        }
+
+        ArrayList<String> names = new ArrayList<>(Arrays.asList(
+                "0123456789abcdef0123456789abcdef.example.com", "ads1.example.com", "ad.example.com",
+                "xxtrack123er.example.com", "ads-beacon.example.com", "analytics.example.com",
+                "\nmetrics.example.com", "metrics.example.com", "abc.stats.example.com", "qpixel.example.com",
+                "tgtg.example.com", "a.btelemetry.example.com", "]xbanner.example.com", "bzpromo.example.com",
+                "abc.example.com", "cd.example.com", "sponsor42.example.com", "SPONSOR42.EXAMPLE.COM",
+                "cdn.example.com", "www.doubleclick.net", "ad1.example.com"));
+        Random random = new Random(18);
+        String alphabet = "abcdefx0123456789.-]\n";
+        for (int i = 0; i < 50000; i++) {
+            StringBuilder name = new StringBuilder();
+            int length = 1 + random.nextInt(40);
+            for (int j = 0; j < length; j++) {
+                name.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+            //Mutate a known name as well, so near misses of every pattern are covered
+            String known = names.get(random.nextInt(21));
+            int position = random.nextInt(known.length());
+            names.add(name.toString());
+            names.add(known.substring(0, position) + alphabet.charAt(random.nextInt(alphabet.length())) +
+                    known.substring(position + 1));
+        }
+
+        int matched = 0;
+        for (String name : names) {
+            boolean expected = false;
+            for (Pattern pattern : patterns) {
+                if (pattern.matcher(name).find()) {
+                    expected = true;
+                    break;
+                }
+            }
+            assertEquals(name, expected, matcher.matches(name));
+            if (expected) {
+                matched++;
+            }
+        }
+        assertTrue(matched > 21);
+    }
+
+    static String toRegex(String pattern) {
+        if (pattern.startsWith("/")) {
+            return pattern.substring(1, pattern.length() - 1);
+        }
+        return "^" + pattern.replace(".", "\\.").replace("*", ".*").replace("?", ".") + "$";
+    }
+}
@@ -0,0 +1,102 @@
+package com.carrotproxy.dns.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Daedalus Project
+ *
+ * @author iTX Technologies
+ * @link https://itxtech.org
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Opening an index must only read what the compiler wrote for it, the tables stay unread
+ * until a query probes them.
+ */
+public class RuleIndexTest {
+    private static final int RULES = 5000;
+
+    private File source;
+    private File index;
+
+    @Before
+    public void setUp() throws IOException {
+        source = File.createTempFile("rules", ".txt");
+        index = new File(source.getPath() + ".idx");
+        try (PrintWriter out = new PrintWriter(source, "US-ASCII")) {
+            for (int i = 0; i < RULES; i++) {
+                out.println("0.0.0.0 a" + i + ".example.com");
+                if (i % 2 == 0) {
+                    out.println(":: a" + i + ".example.com");
+                }
+                //Repeated names are counted once
+                if (i % 10 == 0) {
+                    out.println("0.0.0.0 a" + i + ".example.com");
+                }
+            }
+        }
+    }
+
+    @After
+    public void tearDown() {
+        source.delete();
+        index.delete();
+    }
+
+    @Test
+    public void filterCoversEveryRule() throws IOException {
+        RuleCompiler.compile(source, RuleResolver.MODE_HOSTS, index);
+        RuleIndex opened = RuleIndex.open(index, source.getPath());
+
+        assertEquals(RULES + RULES / 2, opened.size());
+        assertEquals(RULES + RULES / 2, opened.getFilter().getKeys());
+        for (int i = 0; i < RULES; i++) {
+            String name = "a" + i + ".example.com";
+            assertTrue(name, opened.mightContain(name.hashCode()));
+            assertNotNull(name, opened.find(false, name, 0, name.hashCode()));
+        }
+        int passed = 0;
+        for (int i = 0; i < RULES; i++) {
+            String name = "b" + i + ".example.com";
+            if (opened.mightContain(name.hashCode())) {
+                passed++;
+            }
+        }
+        assertTrue("false positives: " + passed, passed < RULES / 50);
+    }
+
+    @Test
+    public void openReadsNoTable() throws IOException {
+        RuleCompiler.compile(source, RuleResolver.MODE_HOSTS, index);
+        //Empty every slot, which only a scan of the tables would notice
+        try (RandomAccessFile file = new RandomAccessFile(index, "rw")) {
+            file.seek(32);
+            int tablesStart = file.readInt();
+            file.seek(44);
+            int keysEnd = file.readInt();
+            file.seek(tablesStart);
+            file.write(new byte[keysEnd - tablesStart]);
+        }
+        RuleIndex opened = RuleIndex.open(index, source.getPath());
+
+        assertEquals(RULES + RULES / 2, opened.size());
+        String name = "a7.example.com";
+        assertTrue(opened.mightContain(name.hashCode()));
+        assertNull(opened.find(false, name, 0, name.hashCode()));
+    }
+}
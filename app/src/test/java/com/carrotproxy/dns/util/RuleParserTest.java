@@ -0,0 +1,267 @@
+package com.carrotproxy.dns.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Daedalus Project
+ *
+ * @author iTX Technologies
+ * @link https://itxtech.org
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Checks {@link RuleParser} against the String based parser it replaced. On lines that parser
+ * read correctly both must give the same rules. On the lines it got wrong, CRLF endings, inline
+ * comments, several names per line and leading whitespace, the byte parser must give what the
+ * old parser gives for the cleaned up line.
+ */
+public class RuleParserTest {
+    private static final int CORPUS_LINES = 20000;
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("rules", ".txt");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void hostsMatchesTheStringParser() throws IOException {
+        ArrayList<String> lines = new ArrayList<>();
+        Random random = new Random(14);
+        for (int i = 0; i < CORPUS_LINES; i++) {
+            lines.add(hostsLine(random, i));
+        }
+        assertEquivalent(RuleResolver.MODE_HOSTS, lines, lines, "\n");
+    }
+
+    @Test
+    public void dnsmasqMatchesTheStringParser() throws IOException {
+        ArrayList<String> lines = new ArrayList<>();
+        Random random = new Random(14);
+        for (int i = 0; i < CORPUS_LINES; i++) {
+            lines.add(dnsmasqLine(random, i));
+        }
+        assertEquivalent(RuleResolver.MODE_DNSMASQ, lines, lines, "\n");
+    }
+
+    @Test
+    public void crlfLinesMatchTheirLfVersion() throws IOException {
+        ArrayList<String> hosts = new ArrayList<>();
+        ArrayList<String> dnsmasq = new ArrayList<>();
+        Random random = new Random(14);
+        for (int i = 0; i < CORPUS_LINES; i++) {
+            hosts.add(hostsLine(random, i));
+            dnsmasq.add(dnsmasqLine(random, i));
+        }
+        assertEquivalent(RuleResolver.MODE_HOSTS, hosts, hosts, "\r\n");
+        assertEquivalent(RuleResolver.MODE_DNSMASQ, dnsmasq, dnsmasq, "\r\n");
+    }
+
+    @Test
+    public void hostsExtensionsMatchTheCleanedUpLines() throws IOException {
+        ArrayList<String> lines = new ArrayList<>();
+        ArrayList<String> cleaned = new ArrayList<>();
+        //Inline comments, which used to end up as names and decide the address family
+        add(lines, cleaned, "0.0.0.0 ads.example.com # tracker: yes", "0.0.0.0 ads.example.com");
+        add(lines, cleaned, "0.0.0.0 inline.example.com#comment", "0.0.0.0 inline.example.com");
+        //Several names, which used to keep only the first
+        add(lines, cleaned, "0.0.0.0 a.example.com b.example.com\tc.example.com",
+                "0.0.0.0 a.example.com", "0.0.0.0 b.example.com", "0.0.0.0 c.example.com");
+        add(lines, cleaned, ":: v6a.example.com v6b.example.com", ":: v6a.example.com", ":: v6b.example.com");
+        //Leading whitespace, which used to map the address to an empty name
+        add(lines, cleaned, "  \t127.0.0.1 indented.example.com", "127.0.0.1 indented.example.com");
+        //Trailing whitespace
+        add(lines, cleaned, "10.0.0.1 trailing.example.com \t", "10.0.0.1 trailing.example.com");
+        //Malformed lines, an address without a name used to abort loading the whole file
+        add(lines, cleaned, "0.0.0.0");
+        add(lines, cleaned, "0.0.0.0   # nothing");
+        add(lines, cleaned, "localhost broadcasthost");
+        add(lines, cleaned, "   ");
+        add(lines, cleaned, "\t# indented comment");
+        add(lines, cleaned, "0.0.0.0 caf\u00e9.example.com");
+        add(lines, cleaned, "0.0.0.0 " + repeat('a', 300));
+        add(lines, cleaned, repeat('1', 300) + ".0 long.example.com");
+        //A line longer than the read buffer is dropped as a whole
+        StringBuilder huge = new StringBuilder("0.0.0.0");
+        for (int i = 0; huge.length() < 70000; i++) {
+            huge.append(" huge").append(i).append(".example.com");
+        }
+        add(lines, cleaned, huge.toString());
+        add(lines, cleaned, "0.0.0.0 after-huge.example.com", "0.0.0.0 after-huge.example.com");
+        assertEquivalent(RuleResolver.MODE_HOSTS, lines, cleaned, "\n");
+        assertEquivalent(RuleResolver.MODE_HOSTS, lines, cleaned, "\r\n");
+    }
+
+    @Test
+    public void dnsmasqExtensionsMatchTheCleanedUpLines() throws IOException {
+        ArrayList<String> lines = new ArrayList<>();
+        ArrayList<String> cleaned = new ArrayList<>();
+        add(lines, cleaned, "  address=/indented.example.com/0.0.0.0", "address=/indented.example.com/0.0.0.0");
+        add(lines, cleaned, "address=/trailing.example.com/0.0.0.0 \t", "address=/trailing.example.com/0.0.0.0");
+        add(lines, cleaned, "address=/v6.example.com/::1", "address=/v6.example.com/::1");
+        //Malformed lines
+        add(lines, cleaned, "address=/slash.example.com/0.0.0.0/");
+        add(lines, cleaned, "address=/empty.example.com/");
+        add(lines, cleaned, "address=/noaddress.example.com/blocked");
+        add(lines, cleaned, "address=//0.0.0.0");
+        add(lines, cleaned, "address=/unterminated.example.com");
+        add(lines, cleaned, "server=/server.example.com/1.1.1.1");
+        add(lines, cleaned, "address=");
+        add(lines, cleaned, "# address=/commented.example.com/0.0.0.0");
+        add(lines, cleaned, "address=/caf\u00e9.example.com/0.0.0.0");
+        assertEquivalent(RuleResolver.MODE_DNSMASQ, lines, cleaned, "\n");
+        assertEquivalent(RuleResolver.MODE_DNSMASQ, lines, cleaned, "\r\n");
+    }
+
+    /**
+     * Parses lines with the byte parser and expected with the String parser, the rules of both
+     * address families must be the same.
+     */
+    private void assertEquivalent(int type, ArrayList<String> lines, ArrayList<String> expected,
+                                  String separator) throws IOException {
+        try (OutputStream out = new FileOutputStream(file)) {
+            for (String line : lines) {
+                out.write((line + separator).getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        DomainIndex rulesA = new DomainIndex();
+        DomainIndex rulesAAAA = new DomainIndex();
+        RuleParser.parse(file, type, rulesA, rulesAAAA);
+
+        HashMap<String, String> expectedA = new HashMap<>();
+        HashMap<String, String> expectedAAAA = new HashMap<>();
+        StringBuilder text = new StringBuilder();
+        for (String line : expected) {
+            text.append(line).append('\n');
+        }
+        parseWithStrings(type, text.toString(), expectedA, expectedAAAA);
+
+        assertTrue("Empty corpus", !expectedA.isEmpty() || !expectedAAAA.isEmpty());
+        assertEquals(expectedA, toMap(rulesA));
+        assertEquals(expectedAAAA, toMap(rulesAAAA));
+    }
+
+    /**
+     * The parser RuleResolver.load() used before the byte parser, unchanged.
+     */
+    private static void parseWithStrings(int type, String text, HashMap<String, String> rulesA,
+                                         HashMap<String, String> rulesAAAA) throws IOException {
+        BufferedReader dataIO = new BufferedReader(new StringReader(text));
+        String strLine;
+        String[] data;
+        while ((strLine = dataIO.readLine()) != null) {
+            if (!strLine.equals("") && !strLine.startsWith("#")) {
+                if (type == RuleResolver.MODE_HOSTS) {
+                    data = strLine.split("\\s+");
+                    if (strLine.contains(":")) {//IPv6
+                        rulesAAAA.put(data[1], data[0]);
+                    } else if (strLine.contains(".")) {//IPv4
+                        rulesA.put(data[1], data[0]);
+                    }
+                } else {
+                    data = strLine.split("/");
+                    if (data.length == 3 && data[0].equals("address=")) {
+                        if (data[1].startsWith(".")) {
+                            data[1] = data[1].substring(1, data[1].length());
+                        }
+                        if (strLine.contains(":")) {//IPv6
+                            rulesAAAA.put(data[1], data[2]);
+                        } else if (strLine.contains(".")) {//IPv4
+                            rulesA.put(data[1], data[2]);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static HashMap<String, String> toMap(DomainIndex index) {
+        HashMap<String, String> map = new HashMap<>();
+        for (int slot = 0; slot < index.capacity(); slot++) {
+            if (index.keyAt(slot) != null) {
+                map.put(index.keyAt(slot), index.valueAt(slot));
+            }
+        }
+        return map;
+    }
+
+    /**
+     * @return a line the String parser reads correctly, names repeat so later lines override
+     */
+    private static String hostsLine(Random random, int i) {
+        String name = "host" + random.nextInt(CORPUS_LINES / 2) + (random.nextBoolean() ? ".example.com" : ".ads.example.net");
+        String separator = random.nextBoolean() ? " " : random.nextBoolean() ? "\t" : "   ";
+        switch (random.nextInt(8)) {
+            case 0:
+                return "# comment " + i;
+            case 1:
+                return "";
+            case 2:
+                return "::" + separator + name;
+            case 3:
+                return "2001:db8::" + Integer.toHexString(i) + separator + name;
+            case 4:
+                return "10." + random.nextInt(256) + "." + random.nextInt(256) + ".1" + separator + name;
+            default:
+                return "0.0.0.0" + separator + name;
+        }
+    }
+
+    private static String dnsmasqLine(Random random, int i) {
+        String name = (random.nextBoolean() ? "." : "") + "host" + random.nextInt(CORPUS_LINES / 2) + ".example.com";
+        switch (random.nextInt(8)) {
+            case 0:
+                return "# comment " + i;
+            case 1:
+                return "";
+            case 2:
+                return "server=/" + name + "/1.1.1.1#53";
+            case 3:
+                return "address=/" + name + "/::";
+            case 4:
+                return "address=/" + name + "/2001:db8::" + Integer.toHexString(i);
+            default:
+                return "address=/" + name + "/0.0.0.0";
+        }
+    }
+
+    private static void add(ArrayList<String> lines, ArrayList<String> cleaned, String line, String... expected) {
+        lines.add(line);
+        for (String clean : expected) {
+            cleaned.add(clean);
+        }
+    }
+
+    private static String repeat(char c, int count) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            builder.append(c);
+        }
+        return builder.toString();
+    }
+}
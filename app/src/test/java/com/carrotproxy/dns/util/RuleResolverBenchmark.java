@@ -0,0 +1,127 @@
+package com.carrotproxy.dns.util;
+
+import com.carrotproxy.dns.Benchmark;
+import com.carrotproxy.dns.Daedalus;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Daedalus Project
+ *
+ * @author iTX Technologies
+ * @link https://itxtech.org
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Time to load 1 to 8 rule files that have no index yet, compiled one after another on one
+ * thread and by RuleResolver, which compiles them concurrently.
+ */
+public class RuleResolverBenchmark {
+    private static final int RULES_PER_FILE = 100000;
+    private static final int MAX_FILES = 8;
+    private static final int ROUNDS = 3;
+
+    private File rules;
+    private File indexes;
+    private final String[] paths = new String[MAX_FILES];
+
+    @Before
+    public void setUp() throws IOException {
+        rules = Files.createTempDirectory("rules").toFile();
+        indexes = Files.createTempDirectory("indexes").toFile();
+        Daedalus.indexPath = indexes.getPath() + "/";
+        for (int file = 0; file < MAX_FILES; file++) {
+            File list = new File(rules, "list" + file + ".txt");
+            try (PrintWriter out = new PrintWriter(list, "US-ASCII")) {
+                for (int i = 0; i < RULES_PER_FILE; i++) {
+                    out.println("0.0.0.0 t" + i + ".list" + file + ".example.com");
+                }
+            }
+            paths[file] = list.getPath();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        reset();
+        delete(rules);
+        delete(indexes);
+    }
+
+    @Test
+    public void loadTimeByFileCount() throws Exception {
+        //Warm up both paths once
+        compileInSequence(MAX_FILES);
+        load(MAX_FILES);
+        for (int files = 1; files <= MAX_FILES; files *= 2) {
+            long sequential = Long.MAX_VALUE;
+            long concurrent = Long.MAX_VALUE;
+            for (int round = 0; round < ROUNDS; round++) {
+                sequential = Math.min(sequential, compileInSequence(files));
+                concurrent = Math.min(concurrent, load(files));
+            }
+            Benchmark.report("%d files of %d rules on %d cores: one after another %d ms, RuleResolver %d ms",
+                    files, RULES_PER_FILE, Runtime.getRuntime().availableProcessors(), sequential, concurrent);
+        }
+    }
+
+    /**
+     * @return milliseconds to compile and open the first files on the calling thread
+     */
+    private long compileInSequence(int files) throws IOException {
+        reset();
+        long start = System.nanoTime();
+        for (int i = 0; i < files; i++) {
+            File file = new File(paths[i]);
+            File index = new File(indexes, file.getName() + ".idx");
+            RuleCompiler.compile(file, RuleResolver.MODE_HOSTS, index);
+            Benchmark.keep(RuleIndex.open(index, file.getPath()));
+        }
+        return (System.nanoTime() - start) / 1000000;
+    }
+
+    /**
+     * @return milliseconds for RuleResolver to load the first files
+     */
+    private long load(int files) {
+        reset();
+        String[] loaded = new String[files];
+        int[] types = new int[files];
+        System.arraycopy(paths, 0, loaded, 0, files);
+        long start = System.nanoTime();
+        RuleResolver.startLoad(loaded, types);
+        assertTrue(RuleResolver.awaitLoaded(60000));
+        return (System.nanoTime() - start) / 1000000;
+    }
+
+    /**
+     * Unloads the rules and deletes their indexes, so every file is compiled again.
+     */
+    private static void reset() {
+        RuleResolver.clear();
+        //Loading nothing runs after the prune queued by clear()
+        RuleResolver.startLoad(new String[0], new int[0]);
+        assertTrue(RuleResolver.awaitLoaded(10000));
+    }
+
+    private static void delete(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+}
@@ -0,0 +1,253 @@
+package com.carrotproxy.dns.util;
+
+import com.carrotproxy.dns.Daedalus;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.minidns.record.Record;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Daedalus Project
+ *
+ * @author iTX Technologies
+ * @link https://itxtech.org
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Compiled indexes are reused across loads only for the file and type they were compiled
+ * from, and do not outlive the rule files they belong to. A few changes to a loaded file are
+ * laid over its index instead of compiling it again.
+ */
+public class RuleResolverTest {
+    private static final int RULES = 4000;
+
+    private File rules;
+    private File indexes;
+
+    @Before
+    public void setUp() throws IOException {
+        rules = Files.createTempDirectory("rules").toFile();
+        indexes = Files.createTempDirectory("indexes").toFile();
+        Daedalus.indexPath = indexes.getPath() + "/";
+    }
+
+    @After
+    public void tearDown() {
+        RuleResolver.clear();
+        //Loading nothing runs after the prune queued by clear(), so none is left for the next test
+        load(new File[0], new int[0]);
+        delete(rules);
+        delete(indexes);
+    }
+
+    @Test
+    public void indexIsStaleForAnotherType() throws IOException {
+        File source = write("list.txt", "address=/ads.example.com/0.0.0.0");
+        File index = new File(indexes, "list.txt.idx");
+        RuleCompiler.compile(source, RuleResolver.MODE_HOSTS, index);
+
+        assertTrue(RuleCompiler.isCurrent(source, RuleResolver.MODE_HOSTS, index));
+        assertFalse(RuleCompiler.isCurrent(source, RuleResolver.MODE_DNSMASQ, index));
+        assertFalse(RuleCompiler.isCurrent(source, RuleResolver.MODE_ALLOWLIST, index));
+    }
+
+    @Test
+    public void loadDeletesUnusedIndexes() throws Exception {
+        File first = write("first.txt", "0.0.0.0 first.example.com");
+        File second = write("second.txt", "0.0.0.0 second.example.com");
+        //Left by a compile that did not finish
+        write(indexes, "second.txt.idx.tmp", "");
+
+        load(new File[]{first, second}, new int[]{RuleResolver.MODE_HOSTS, RuleResolver.MODE_HOSTS});
+        assertTrue(new File(indexes, "first.txt.idx").exists());
+        assertTrue(new File(indexes, "second.txt.idx").exists());
+        assertFalse(new File(indexes, "second.txt.idx.tmp").exists());
+
+        load(new File[]{second}, new int[]{RuleResolver.MODE_HOSTS});
+        assertFalse(new File(indexes, "first.txt.idx").exists());
+        assertTrue(new File(indexes, "second.txt.idx").exists());
+    }
+
+    @Test
+    public void fewChangesAreAppliedToTheLoadedIndex() throws Exception {
+        ArrayList<String> lines = hostsLines();
+        File list = write("list.txt", lines);
+        load(new File[]{list}, new int[]{RuleResolver.MODE_HOSTS});
+        File index = new File(indexes, "list.txt.idx");
+        byte[] compiled = Files.readAllBytes(index.toPath());
+
+        lines.remove("0.0.0.0 a0.example.com");
+        lines.set(lines.indexOf("0.0.0.0 a1.example.com"), "10.0.0.1 a1.example.com");
+        lines.add(":: added.example.com");
+        update(list, lines);
+        load(new File[]{list}, new int[]{RuleResolver.MODE_HOSTS});
+
+        //The index file still holds the compiled version
+        assertArrayEquals(compiled, Files.readAllBytes(index.toPath()));
+        assertFalse(RuleCompiler.isCurrent(list, RuleResolver.MODE_HOSTS, index));
+        assertNull(RuleResolver.resolve("a0.example.com", Record.TYPE.A));
+        assertEquals("10.0.0.1", RuleResolver.resolve("a1.example.com", Record.TYPE.A).getAddress().toString());
+        assertEquals("::", RuleResolver.resolve("added.example.com", Record.TYPE.AAAA).getAddress().toString());
+        assertTrue(RuleResolver.resolve("a2.example.com", Record.TYPE.A).isBlocked());
+    }
+
+    @Test
+    public void manyChangesAreCompiled() throws Exception {
+        ArrayList<String> lines = hostsLines();
+        File list = write("list.txt", lines);
+        load(new File[]{list}, new int[]{RuleResolver.MODE_HOSTS});
+
+        lines.clear();
+        for (int i = 0; i < RULES; i++) {
+            lines.add("0.0.0.0 b" + i + ".example.com");
+        }
+        update(list, lines);
+        load(new File[]{list}, new int[]{RuleResolver.MODE_HOSTS});
+
+        assertTrue(RuleCompiler.isCurrent(list, RuleResolver.MODE_HOSTS, new File(indexes, "list.txt.idx")));
+        assertNull(RuleResolver.resolve("a2.example.com", Record.TYPE.A));
+        assertNotNull(RuleResolver.resolve("b2.example.com", Record.TYPE.A));
+    }
+
+    @Test
+    public void deltaMatchesAFullCompile() throws Exception {
+        Random random = new Random(11);
+        for (int type : new int[]{RuleResolver.MODE_HOSTS, RuleResolver.MODE_DNSMASQ, RuleResolver.MODE_ALLOWLIST}) {
+            ArrayList<String> lines = new ArrayList<>();
+            for (int i = 0; i < RULES; i++) {
+                lines.add(line(type, i, random));
+            }
+            File list = write("list" + type + ".txt", lines);
+            File index = new File(indexes, list.getName() + ".idx");
+            RuleCompiler.compile(list, type, index);
+            RuleIndex compiled = RuleIndex.open(index, list.getPath());
+
+            for (int i = 0; i < RULES / 50; i++) {
+                int line = random.nextInt(lines.size());
+                switch (random.nextInt(3)) {
+                    case 0:
+                        lines.remove(line);
+                        break;
+                    case 1:
+                        lines.set(line, line(type, random.nextInt(RULES), random));
+                        break;
+                    default:
+                        lines.add(line(type, RULES + i, random));
+                        break;
+                }
+            }
+            update(list, lines);
+            RuleDelta delta = RuleCompiler.diff(list, type, compiled, RULES);
+            assertNotNull(delta);
+            RuleIndex patched = compiled.withDelta(delta, list.length(), list.lastModified());
+            File fresh = new File(indexes, "fresh.idx");
+            RuleCompiler.compile(list, type, fresh);
+            RuleIndex expected = RuleIndex.open(fresh, list.getPath());
+
+            assertEquals(expected.size(), patched.size());
+            assertTrue(patched.isCompiledFrom(list, type));
+            for (int i = 0; i < RULES * 2; i++) {
+                for (String name : new String[]{"a" + i + ".example.com", "sub.a" + i + ".example.com"}) {
+                    for (boolean ipv6 : new boolean[]{false, true}) {
+                        RuleAddress want = expected.find(ipv6, name, 0, name.hashCode());
+                        RuleAddress got = patched.mightContain(name.hashCode()) ?
+                                patched.find(ipv6, name, 0, name.hashCode()) : null;
+                        assertEquals(name, String.valueOf(want), String.valueOf(got));
+                    }
+                }
+            }
+        }
+    }
+
+    private static ArrayList<String> hostsLines() {
+        ArrayList<String> lines = new ArrayList<>();
+        for (int i = 0; i < RULES; i++) {
+            lines.add("0.0.0.0 a" + i + ".example.com");
+        }
+        return lines;
+    }
+
+    private static String line(int type, int i, Random random) {
+        String name = "a" + i + ".example.com";
+        String address = random.nextBoolean() ? "0.0.0.0" : random.nextBoolean() ? "::" : "10.0.0." + random.nextInt(4);
+        switch (type) {
+            case RuleResolver.MODE_DNSMASQ:
+                return "address=/" + name + "/" + address;
+            case RuleResolver.MODE_ALLOWLIST:
+                return random.nextBoolean() ? name : "*." + name;
+            default:
+                return address + " " + name;
+        }
+    }
+
+    /**
+     * Rewrites the file, with a modification time the previous version can not have.
+     */
+    private static void update(File file, ArrayList<String> lines) throws IOException {
+        long modified = file.lastModified();
+        try (PrintWriter out = new PrintWriter(file, "US-ASCII")) {
+            for (String line : lines) {
+                out.println(line);
+            }
+        }
+        assertTrue(file.setLastModified(modified + 2000));
+    }
+
+    private static void load(File[] files, int[] types) {
+        String[] paths = new String[files.length];
+        for (int i = 0; i < files.length; i++) {
+            paths[i] = files[i].getPath();
+        }
+        RuleResolver.startLoad(paths, types);
+        assertTrue(RuleResolver.awaitLoaded(10000));
+    }
+
+    private File write(String name, String line) throws IOException {
+        return write(rules, name, line);
+    }
+
+    private File write(String name, ArrayList<String> lines) throws IOException {
+        File file = new File(rules, name);
+        try (PrintWriter out = new PrintWriter(file, "US-ASCII")) {
+            for (String line : lines) {
+                out.println(line);
+            }
+        }
+        return file;
+    }
+
+    private static File write(File directory, String name, String line) throws IOException {
+        File file = new File(directory, name);
+        try (PrintWriter out = new PrintWriter(file, "US-ASCII")) {
+            out.println(line);
+        }
+        return file;
+    }
+
+    private static void delete(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+}
@@ -0,0 +1,121 @@
+package com.carrotproxy.dns.util;
+
+import com.carrotproxy.dns.Benchmark;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.HashMap;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Daedalus Project
+ *
+ * @author iTX Technologies
+ * @link https://itxtech.org
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Lookup latency and heap of a 500k rule dnsmasq list, loaded as a compiled index and as the
+ * HashMap with a suffix rebuilt for every label that RuleResolver used before.
+ */
+public class RuleSetBenchmark {
+    private static final int RULES = 500000;
+    private static final int QUERIES = 4096;
+    private static final int ITERATIONS = 1000000;
+
+    private File source;
+    private File index;
+    // Half are subdomains of listed names, half are not listed
+    private final String[] queries = new String[QUERIES];
+
+    @Before
+    public void setUp() throws IOException {
+        source = File.createTempFile("rules", ".conf");
+        index = new File(source.getPath() + ".idx");
+        try (PrintWriter out = new PrintWriter(source, "US-ASCII")) {
+            for (int i = 0; i < RULES; i++) {
+                out.println("address=/" + name(i) + "/0.0.0.0");
+            }
+        }
+        for (int i = 0; i < QUERIES; i++) {
+            queries[i] = i % 2 == 0 ? "www." + name(i * 97 % RULES) : "www." + name(RULES + i);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        source.delete();
+        index.delete();
+    }
+
+    @Test
+    public void lookup() throws Exception {
+        long heap = Benchmark.usedHeap();
+        HashMap<String, String> map = new HashMap<>();
+        for (int i = 0; i < RULES; i++) {
+            map.put(name(i), "0.0.0.0");
+        }
+        long mapHeap = Benchmark.usedHeap() - heap;
+
+        heap = Benchmark.usedHeap();
+        RuleCompiler.compile(source, RuleResolver.MODE_DNSMASQ, index);
+        RuleSet rules = new RuleSet(new RuleIndex[]{RuleIndex.open(index, source.getPath())}, PatternMatcher.EMPTY);
+        long indexHeap = Benchmark.usedHeap() - heap;
+
+        int matched = 0;
+        for (String query : queries) {
+            if (resolve(map, query) != null) {
+                matched++;
+            }
+            assertEquals(query, resolve(map, query) != null, rules.resolve(query, false, true) != null);
+        }
+        assertEquals(QUERIES / 2, matched);
+
+        double mapNanos = Benchmark.nanosPerOperation(ITERATIONS, i -> resolve(map, queries[i % QUERIES]));
+        double indexNanos = Benchmark.nanosPerOperation(ITERATIONS, i -> rules.resolve(queries[i % QUERIES], false, true));
+        double mapBytes = Benchmark.bytesPerOperation(ITERATIONS, i -> resolve(map, queries[i % QUERIES]));
+        double indexBytes = Benchmark.bytesPerOperation(ITERATIONS, i -> rules.resolve(queries[i % QUERIES], false, true));
+        Benchmark.report("%d dnsmasq rules, HashMap: %.0f ns %.0f bytes per lookup, %d MB heap", RULES,
+                mapNanos, mapBytes, mapHeap >> 20);
+        Benchmark.report("%d dnsmasq rules, index: %.0f ns %.0f bytes per lookup, %d KB heap, %d MB mapped file",
+                RULES, indexNanos, indexBytes, indexHeap >> 10, index.length() >> 20);
+        Benchmark.keep(map);
+        Benchmark.keep(rules);
+    }
+
+    private static String name(int i) {
+        return "t" + i + ".cdn" + i % 5000 + ".example.net";
+    }
+
+    /**
+     * RuleResolver.resolve() before the index, in dnsmasq mode.
+     */
+    private static String resolve(HashMap<String, String> rules, String hostname) {
+        if (rules.containsKey(hostname)) {
+            return rules.get(hostname);
+        }
+        String[] pieces = hostname.split("\\.");
+        StringBuilder builder;
+        for (int i = 1; i < pieces.length; i++) {
+            builder = new StringBuilder();
+            for (int j = i; j < pieces.length; j++) {
+                builder.append(pieces[j]);
+                if (j < pieces.length - 1) {
+                    builder.append(".");
+                }
+            }
+            if (rules.containsKey(builder.toString())) {
+                return rules.get(builder.toString());
+            }
+        }
+        return null;
+    }
+}